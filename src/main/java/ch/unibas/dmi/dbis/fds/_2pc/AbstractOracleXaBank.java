@@ -1,11 +1,16 @@
 package ch.unibas.dmi.dbis.fds._2pc;
 
 
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sql.XAConnection;
@@ -29,6 +34,39 @@ public abstract class AbstractOracleXaBank {
         this.simulateError = simulateError;
     }
 
+    private volatile AccountConstraintIndex constraintIndex = null;
+
+    /**
+     * Enables (and loads the index for) or disables the pre-validation of transfers debiting or crediting this bank.
+     */
+    public void setPreValidation( final boolean enabled ) throws SQLException {
+        if ( !enabled ) {
+            this.constraintIndex = null;
+            return;
+        }
+        final AccountConstraintIndex index = new AccountConstraintIndex( this::lookupBalance );
+        try ( Connection c = openLocalConnection() ) {
+            index.load( c );
+        }
+        this.constraintIndex = index;
+    }
+
+    /**
+     * @return the account constraint index of this bank, or null if pre-validation is disabled
+     */
+    public AccountConstraintIndex getConstraintIndex() {
+        return constraintIndex;
+    }
+
+    private volatile FaultInjector faultInjector = null;
+
+    /**
+     * Installs (or with null removes) a fault injector for the XA operations and JDBC statements of this bank.
+     */
+    public void setFaultInjector( final FaultInjector faultInjector ) {
+        this.faultInjector = faultInjector;
+    }
+
     // Load database driver
     static {
         try {
@@ -41,6 +79,11 @@ public abstract class AbstractOracleXaBank {
 
     protected static final Logger LOG = Logger.getLogger( AbstractOracleXaBank.class.getName() );
 
+    private static final int STATEMENT_PAGE_SIZE = 10000;
+
+    /** CAUTION: Weird bank - accounts have a maximum capacity! See ck_full_account. */
+    static final BigDecimal MAX_BALANCE = new BigDecimal( 15000 );
+
     // Xid components
     private static final int formatIdentifier = 0;
     private static final Object globalTransactionIdLock = new Object();
@@ -52,6 +95,8 @@ public abstract class AbstractOracleXaBank {
 
     //
     public final String jdbcConnectionString;
+    private final String dbmsUsername;
+    private final String dbmsPassword;
 
     // XA components
     private XAConnection xaConnection;
@@ -61,6 +106,8 @@ public abstract class AbstractOracleXaBank {
     public AbstractOracleXaBank( final String BIC, final String jdbcConnectionString, final String dbmsUsername, final String dbmsPassword ) throws SQLException {
         this.BIC = BIC;
         this.jdbcConnectionString = jdbcConnectionString;
+        this.dbmsUsername = dbmsUsername;
+        this.dbmsPassword = dbmsPassword;
 
         this.branchQualifier = ByteBuffer.allocate( 64 ).putInt( this.BIC.hashCode() ).array();
 
@@ -77,6 +124,8 @@ public abstract class AbstractOracleXaBank {
 
     public abstract void transfer( AbstractOracleXaBank TO_BANK, String ibanFrom, String ibanTo, float value );
 
+    public abstract void transfer( AbstractOracleXaBank TO_BANK, String ibanFrom, String ibanTo, float value, String idempotencyKey );
+
 
     public XAConnection openConnection( final String connectionString, final String dbmsUsername, final String dbmsPassword ) throws SQLException {
         final OracleXADataSource dataSource = new OracleXADataSource();
@@ -88,6 +137,38 @@ public abstract class AbstractOracleXaBank {
     }
 
 
+    /**
+     * Opens a plain (non-XA) connection to this bank's database. Used by batch jobs which need their own connections
+     * for parallel workers and commit locally instead of taking part in a global transaction.
+     */
+    public Connection openLocalConnection() throws SQLException {
+        return java.sql.DriverManager.getConnection( this.jdbcConnectionString, this.dbmsUsername, this.dbmsPassword );
+    }
+
+
+    /**
+     * Streams the account statement of the given IBAN for [from, to) to the sink on a separate local connection.
+     *
+     * @see TransferHistory#exportStatement(Connection, String, Timestamp, Timestamp, int, int, Consumer)
+     */
+    public long exportStatement( final String iban, final Timestamp from, final Timestamp to, final int fetchSize, final Consumer<TransferHistory.Entry> sink ) throws SQLException {
+        try ( Connection c = openLocalConnection() ) {
+            c.setReadOnly( true );
+            return TransferHistory.exportStatement( c, iban, from, to, STATEMENT_PAGE_SIZE, fetchSize, sink );
+        }
+    }
+
+
+    private BigDecimal lookupBalance( final String iban ) throws SQLException {
+        try ( Connection c = getXaConnection().getConnection(); PreparedStatement statement = c.prepareStatement( "SELECT NVL(Balance, 0) FROM account WHERE IBAN = ?" ) ) {
+            statement.setString( 1, iban );
+            try ( ResultSet resultSet = statement.executeQuery() ) {
+                return resultSet.next() ? resultSet.getBigDecimal( 1 ) : null;
+            }
+        }
+    }
+
+
     public final void closeConnection() {
         try {
             if ( this.xaConnection != null ) {
@@ -101,14 +182,39 @@ public abstract class AbstractOracleXaBank {
     }
 
 
+    /**
+     * Replaces the XA connection and resource of this bank with new ones, e.g., after XAER_RMFAIL, which means the
+     * connection to the resource manager has been lost. Prepared branches of the old connection stay in doubt in the
+     * database until they are recovered.
+     */
+    public synchronized void reconnect() throws SQLException {
+        final XAConnection old = this.xaConnection;
+        this.xaConnection = openConnection( jdbcConnectionString, dbmsUsername, dbmsPassword );
+        this.xaResource = this.xaConnection.getXAResource();
+        if ( old != null ) {
+            try {
+                old.close();
+            } catch ( SQLException ex ) {
+                LOG.log( Level.FINE, "Could not close the lost XA connection.", ex );
+            }
+        }
+    }
+
+
     public XAConnection getXaConnection() throws SQLException {
         if (simulateError) throw new SQLException("Simulated error in XA connection.");
+        final FaultInjector injector = this.faultInjector;
+        if ( injector != null ) {
+            injector.injectSql( FaultInjector.Phase.CONNECT );
+            return injector.wrap( xaConnection );
+        }
         return xaConnection;
     }
 
 
     public XAResource getXaResource() {
-        return xaResource;
+        final FaultInjector injector = this.faultInjector;
+        return injector != null ? injector.wrap( xaResource ) : xaResource;
     }
 
 
@@ -119,7 +225,7 @@ public abstract class AbstractOracleXaBank {
 
         LOG.info("Starting transaction: " + xid);
 
-        xaResource.start(xid, XAResource.TMNOFLAGS);
+        getXaResource().start(xid, XAResource.TMNOFLAGS);
 
         return xid;
     }
@@ -130,7 +236,7 @@ public abstract class AbstractOracleXaBank {
 
         // TODO: your turn ;-)
 
-        xaResource.start(xid, XAResource.TMNOFLAGS);
+        getXaResource().start(xid, XAResource.TMNOFLAGS);
 
         return xid;
     }
@@ -141,7 +247,7 @@ public abstract class AbstractOracleXaBank {
 
         // success if rollback is false, fail if rollback is true
         int flag = rollback ? XAResource.TMFAIL : XAResource.TMSUCCESS;
-        xaResource.end(transactionId, flag);
+        getXaResource().end(transactionId, flag);
     }
 
 
@@ -174,20 +280,111 @@ public abstract class AbstractOracleXaBank {
     }
 
 
-    private void rollbackPendingTransactions() {
+    /**
+     * Records in the coordinator's branch that the global transaction commits. The record becomes visible exactly when
+     * this branch has been committed, which is what the recovery of the other branches asks for.
+     *
+     * The record is only needed until the other branches have been committed as well; it is deleted then, see
+     * {@link #forgetCommitDecision(Xid)}.
+     *
+     * @see #recoverPendingTransactions(AbstractOracleXaBank)
+     */
+    public void recordCommitDecision( final Connection connection, final Xid transactionId ) throws SQLException {
+        try ( PreparedStatement statement = connection.prepareStatement( "INSERT INTO transfer_commit_log (GlobalTransactionId, CommittedAt) VALUES (?, SYSTIMESTAMP)" ) ) {
+            statement.setBytes( 1, transactionId.getGlobalTransactionId() );
+            statement.executeUpdate();
+        }
+    }
+
+
+    /**
+     * Deletes the commit decision of a global transaction whose branches have all been committed. Bypasses the fault
+     * injector. A failure is only logged, the decision is not needed anymore.
+     */
+    public void forgetCommitDecision( final Xid transactionId ) {
+        try ( Connection c = this.xaConnection.getConnection();
+                PreparedStatement statement = c.prepareStatement( "DELETE FROM transfer_commit_log WHERE GlobalTransactionId = ?" ) ) {
+            statement.setBytes( 1, transactionId.getGlobalTransactionId() );
+            statement.executeUpdate();
+            if ( !c.getAutoCommit() ) {
+                c.commit();
+            }
+        } catch ( SQLException ex ) {
+            LOG.log( Level.WARNING, "Could not delete the commit decision of " + transactionId + ".", ex );
+        }
+    }
+
+
+    /**
+     * @return whether the branch of this bank (as the coordinator) of the given global transaction has been committed
+     */
+    public boolean isCommitted( final Xid transactionId ) throws SQLException {
+        try ( Connection c = openLocalConnection();
+                PreparedStatement statement = c.prepareStatement( "SELECT COUNT(*) FROM transfer_commit_log WHERE GlobalTransactionId = ?" ) ) {
+            statement.setBytes( 1, transactionId.getGlobalTransactionId() );
+            try ( ResultSet resultSet = statement.executeQuery() ) {
+                resultSet.next();
+                return resultSet.getInt( 1 ) > 0;
+            }
+        }
+    }
+
+
+    /**
+     * Resolves the prepared (in-doubt) branches of this bank after a crash of the given coordinator: a branch is
+     * committed if the coordinator's branch of the same global transaction has been committed, and rolled back
+     * otherwise. The coordinator's own in-doubt branches have to be resolved (i.e., rolled back) first, since a read of
+     * their rows would fail with ORA-01591. Bypasses the fault injector.
+     *
+     * @return the number of resolved branches
+     */
+    public int recoverPendingTransactions( final AbstractOracleXaBank coordinator ) {
+        int resolved = 0;
+        try {
+            Xid[] transactionIds = xaResource.recover( XAResource.TMENDRSCAN );
+            if ( transactionIds.length == 0 ) {
+                return 0;
+            }
+
+            LOG.log( Level.INFO, "Found " + transactionIds.length + " pending transactions. Resolving them with " + coordinator.BIC + "." );
+            for ( Xid transactionId : transactionIds ) {
+                if ( coordinator.isCommitted( transactionId ) ) {
+                    xaResource.commit( transactionId, false );
+                    coordinator.forgetCommitDecision( transactionId );
+                } else {
+                    xaResource.rollback( transactionId );
+                }
+                ++resolved;
+            }
+        } catch ( XAException | SQLException ex ) {
+            LOG.log( Level.WARNING, "Could not resolve all pending transactions.", ex );
+        }
+        return resolved;
+    }
+
+
+    /**
+     * Rolls back the prepared (in-doubt) branches of this bank, as done on startup. Bypasses the fault injector.
+     *
+     * @return the number of rolled back branches
+     */
+    public int rollbackPendingTransactions() {
+        int rolledBack = 0;
         try {
             Xid[] transactionIds = xaResource.recover( XAResource.TMENDRSCAN );
             if ( transactionIds.length == 0 ) {
-                return;
+                return 0;
             }
 
             LOG.log( Level.INFO, "Found " + transactionIds.length + " pending transactions. Performing a rollback for those." );
             for ( Xid transactionId : transactionIds ) {
                 xaResource.rollback( transactionId );
+                ++rolledBack;
             }
         } catch ( XAException ex ) {
             LOG.log( Level.WARNING, "Could not rollback all pending transactions.", ex );
         }
+        return rolledBack;
     }
 
 
@@ -195,6 +392,55 @@ public abstract class AbstractOracleXaBank {
         try ( Connection c = this.xaConnection.getConnection() ) {
             c.setAutoCommit( false );
 
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "DROP TABLE ledger_watermark" );
+                c.commit();
+            } catch ( SQLException ignored ) {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "DROP TABLE ledger_snapshot" );
+                c.commit();
+            } catch ( SQLException ignored ) {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "DROP TABLE transfer_commit_log" );
+                c.commit();
+            } catch ( SQLException ignored ) {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "DROP TABLE transfer_idempotency" );
+                c.commit();
+            } catch ( SQLException ignored ) {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "DROP TABLE transfer_history" );
+                c.commit();
+            } catch ( SQLException ignored ) {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "DROP SEQUENCE transfer_history_seq" );
+                c.commit();
+            } catch ( SQLException ignored ) {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "DROP TABLE interest_checkpoint" );
+                c.commit();
+            } catch ( SQLException ignored ) {
+            }
+
             try {
                 final Statement statement = c.createStatement();
                 statement.execute( "DROP TABLE account" );
@@ -240,7 +486,7 @@ public abstract class AbstractOracleXaBank {
                         "CONSTRAINT pk_account PRIMARY KEY(IBAN)," +
                         "CONSTRAINT fk_customer FOREIGN KEY (CustomerNo) REFERENCES Customer(CustomerNo)," +
                         "CONSTRAINT ck_balance CHECK (Balance >= 0)," +
-                        "CONSTRAINT ck_full_account CHECK (Balance <= 15000))" ); // CAUTION: Weird bank - accounts have a maximum capacity!
+                        "CONSTRAINT ck_full_account CHECK (Balance <= " + MAX_BALANCE.toPlainString() + "))" ); // CAUTION: Weird bank - accounts have a maximum capacity!
 
                 statement.execute( "INSERT INTO account VALUES ('CH5367B1', 1, 8000, 0.01 )" );
                 statement.execute( "INSERT INTO account VALUES ('CH5367B2', 2, 15000, 0.02 )" );
@@ -250,6 +496,82 @@ public abstract class AbstractOracleXaBank {
                 c.commit();
             } finally {
             }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "CREATE TABLE interest_checkpoint (" +
+                        "RunId VARCHAR2(50)," +
+                        "RangeNo INTEGER," +
+                        "LowIban VARCHAR2(50)," +
+                        "HighIban VARCHAR2(50)," +
+                        "LastIban VARCHAR2(50)," +
+                        "Done NUMBER(1) DEFAULT 0," +
+                        "AccrualFraction NUMBER," +
+                        "CONSTRAINT pk_interest_checkpoint PRIMARY KEY(RunId, RangeNo))" );
+                c.commit();
+            } finally {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                // Append-only: rows are never updated (PCTFREE 0) and new entries always go to the newest partition
+                statement.execute( "CREATE SEQUENCE transfer_history_seq CACHE 1000 NOORDER" );
+                statement.execute( "CREATE TABLE transfer_history (" +
+                        "EntryNo NUMBER," +
+                        "IBAN VARCHAR2(50)," +
+                        "BookedAt TIMESTAMP," +
+                        "Amount NUMBER," +
+                        "CounterBIC VARCHAR2(50)," +
+                        "CounterIBAN VARCHAR2(50)," +
+                        "Reference VARCHAR2(100)," +
+                        "CONSTRAINT pk_transfer_history PRIMARY KEY(EntryNo))" +
+                        " PCTFREE 0" +
+                        " PARTITION BY RANGE (EntryNo) INTERVAL (10000000) (PARTITION p_history_0 VALUES LESS THAN (10000000))" );
+                statement.execute( "CREATE INDEX ix_transfer_history_statement ON transfer_history (IBAN, BookedAt, EntryNo)" ); // global: a statement page is one ordered range scan
+                // The history is the ledger of the accounts: their balances always equal the sum of their entries
+                statement.execute( "INSERT INTO transfer_history (EntryNo, IBAN, BookedAt, Amount, Reference) " +
+                        "SELECT transfer_history_seq.NEXTVAL, IBAN, SYSTIMESTAMP, Balance, 'Opening balance' FROM account" );
+                c.commit();
+            } finally {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "CREATE TABLE transfer_idempotency (" +
+                        "IdempotencyKey VARCHAR2(100)," +
+                        "IBAN VARCHAR2(50)," +
+                        "Amount NUMBER," +
+                        "CounterBIC VARCHAR2(50)," +
+                        "CounterIBAN VARCHAR2(50)," +
+                        "CreatedAt TIMESTAMP," +
+                        "CONSTRAINT pk_transfer_idempotency PRIMARY KEY(IdempotencyKey))" );
+                c.commit();
+            } finally {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "CREATE TABLE transfer_commit_log (" +
+                        "GlobalTransactionId RAW(64)," +
+                        "CommittedAt TIMESTAMP," +
+                        "CONSTRAINT pk_transfer_commit_log PRIMARY KEY(GlobalTransactionId))" );
+                c.commit();
+            } finally {
+            }
+
+            try {
+                final Statement statement = c.createStatement();
+                statement.execute( "CREATE TABLE ledger_snapshot (" +
+                        "IBAN VARCHAR2(50)," +
+                        "Total NUMBER," +
+                        "CONSTRAINT pk_ledger_snapshot PRIMARY KEY(IBAN))" );
+                statement.execute( "CREATE TABLE ledger_watermark (" +
+                        "SnapshotEntryNo NUMBER," +
+                        "PendingEntryNo NUMBER)" );
+                statement.execute( "INSERT INTO ledger_watermark (SnapshotEntryNo, PendingEntryNo) VALUES (0, 0)" );
+                c.commit();
+            } finally {
+            }
         }
     }
 }
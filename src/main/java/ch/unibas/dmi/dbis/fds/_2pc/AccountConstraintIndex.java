@@ -0,0 +1,183 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Locally known balances of a bank's accounts, used to reject transfers which are bound to fail before any XA branch is
+ * started and any row is locked: unknown IBANs, insufficient funds (ck_balance) and exceeded capacity (ck_full_account).
+ * <p>
+ * The index is loaded once and then updated incrementally with every transfer and interest posting committed through
+ * this process. It is only a hint, since other writers, or a transfer interrupted between its commits, leave it stale:
+ * before a transfer is rejected, the balance is re-read from the database and refreshed in the index, and the transfer
+ * is only rejected if the current balance fails as well. A stale balance which lets a transfer pass costs nothing but
+ * the early rejection; the database checks of the transfer stay authoritative.
+ * <p>
+ * A NULL balance, which passes both constraints, is indexed as 0: its debit fails in the database as well, since
+ * {@code Balance >= ?} is not true for it.
+ */
+public class AccountConstraintIndex {
+
+    @FunctionalInterface
+    public interface BalanceLookup {
+
+        /**
+         * @return the current balance of the account (0 for a NULL balance), or null if the account does not exist
+         */
+        BigDecimal lookup( String iban ) throws SQLException;
+    }
+
+
+    private final ConcurrentHashMap<String, BigDecimal> balances = new ConcurrentHashMap<>();
+    private final BalanceLookup lookup;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejectedUnknownIban = new LongAdder();
+    private final LongAdder rejectedInsufficientFunds = new LongAdder();
+    private final LongAdder rejectedCapacity = new LongAdder();
+
+
+    public AccountConstraintIndex( final BalanceLookup lookup ) {
+        this.lookup = lookup;
+    }
+
+
+    /**
+     * (Re-)loads all balances of the account table.
+     */
+    public void load( final Connection connection ) throws SQLException {
+        try ( PreparedStatement statement = connection.prepareStatement( "SELECT IBAN, NVL(Balance, 0) FROM account" ) ) {
+            statement.setFetchSize( 10000 );
+            try ( ResultSet resultSet = statement.executeQuery() ) {
+                while ( resultSet.next() ) {
+                    balances.put( resultSet.getString( 1 ), resultSet.getBigDecimal( 2 ) );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Applies a committed change of a balance.
+     */
+    public void apply( final String iban, final BigDecimal delta ) {
+        balances.computeIfPresent( iban, ( key, balance ) -> balance.add( delta ) );
+    }
+
+
+    public int size() {
+        return balances.size();
+    }
+
+
+    /**
+     * Checks the debit of the given account.
+     *
+     * @return the reason why the debit would fail, or null if it is expected to pass
+     */
+    public String checkDebit( final String iban, final BigDecimal amount ) throws SQLException {
+        BigDecimal balance = balances.get( iban );
+        if ( balance == null || balance.compareTo( amount ) < 0 ) {
+            balance = refresh( iban );
+        }
+        if ( balance == null ) {
+            rejectedUnknownIban.increment();
+            return "Insufficient funds or invalid IBAN: " + iban;
+        }
+        if ( balance.compareTo( amount ) < 0 ) {
+            rejectedInsufficientFunds.increment();
+            return "Insufficient funds or invalid IBAN: " + iban;
+        }
+        return null;
+    }
+
+
+    /**
+     * Checks the credit of the given account.
+     *
+     * @return the reason why the credit would fail, or null if it is expected to pass
+     */
+    public String checkCredit( final String iban, final BigDecimal amount ) throws SQLException {
+        BigDecimal balance = balances.get( iban );
+        if ( balance == null || exceedsCapacity( balance, amount ) ) {
+            balance = refresh( iban );
+        }
+        if ( balance == null ) {
+            rejectedUnknownIban.increment();
+            return "Invalid IBAN: " + iban;
+        }
+        if ( exceedsCapacity( balance, amount ) ) {
+            rejectedCapacity.increment();
+            return "Account capacity exceeded: " + iban;
+        }
+        return null;
+    }
+
+
+    /**
+     * Counts a transfer which passed the checks of this index.
+     */
+    public void accepted() {
+        accepted.increment();
+    }
+
+
+    private static boolean exceedsCapacity( final BigDecimal balance, final BigDecimal amount ) {
+        return balance.add( amount ).compareTo( AbstractOracleXaBank.MAX_BALANCE ) > 0;
+    }
+
+
+    /**
+     * Re-reads the balance of the given account from the database and replaces the indexed one.
+     *
+     * @return the current balance, or null if the account does not exist
+     */
+    private BigDecimal refresh( final String iban ) throws SQLException {
+        final BigDecimal current = lookup.lookup( iban );
+        if ( current != null ) {
+            balances.put( iban, current );
+        } else {
+            balances.remove( iban );
+        }
+        return current;
+    }
+
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+
+    public long getRejectedUnknownIban() {
+        return rejectedUnknownIban.sum();
+    }
+
+
+    public long getRejectedInsufficientFunds() {
+        return rejectedInsufficientFunds.sum();
+    }
+
+
+    public long getRejectedCapacity() {
+        return rejectedCapacity.sum();
+    }
+
+
+    public long getRejected() {
+        return getRejectedUnknownIban() + getRejectedInsufficientFunds() + getRejectedCapacity();
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format( "%d accounts, %d accepted, %d rejected early (%d unknown IBAN, %d insufficient funds, %d capacity)",
+                size(), getAccepted(), getRejected(), getRejectedUnknownIban(), getRejectedInsufficientFunds(), getRejectedCapacity() );
+    }
+}
@@ -0,0 +1,350 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sql.XAConnection;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+
+/**
+ * Injects failures and latency into the XA operations and JDBC statements of a bank, configured per {@link Phase}.
+ * Install it with {@link AbstractOracleXaBank#setFaultInjector(FaultInjector)}; the bank then hands out wrapped
+ * connections and resources.
+ * <p>
+ * A failure surfaces as the error the real resource manager would report: XAER_RMFAIL for XA operations, an
+ * SQLException for statements and connections. A crash throws {@link SimulatedCrashException} past the transfer's error
+ * handling, leaving its branches exactly as they are, e.g., prepared but neither committed nor rolled back.
+ */
+public class FaultInjector {
+
+    public enum Phase {
+        CONNECT, START, STATEMENT, END, PREPARE, COMMIT, ROLLBACK
+    }
+
+
+    private final Map<Phase, Fault> faults = new EnumMap<>( Phase.class );
+
+    private final LongAdder[] invocations = newCounters();
+    private final LongAdder[] failures = newCounters();
+    private final LongAdder[] crashes = newCounters();
+    private final LongAdder[] injectedLatencyMillis = newCounters();
+
+
+    /**
+     * Configures the fault for the given phase, replacing any previous one. Crashes are only supported in
+     * {@link Phase#COMMIT}, i.e., between prepare and commit: a crash in an earlier phase would leave a branch
+     * associated with the bank's only XA connection, which a restart of the coordinator cannot recover.
+     *
+     * @return this injector
+     */
+    public synchronized FaultInjector configure( final Phase phase, final Fault fault ) {
+        if ( fault != null && fault.crashProbability > 0 && phase != Phase.COMMIT ) {
+            throw new IllegalArgumentException( "Crashes can only be injected in " + Phase.COMMIT + "." );
+        }
+        faults.put( phase, fault );
+        return this;
+    }
+
+
+    private synchronized Fault getFault( final Phase phase ) {
+        return faults.get( phase );
+    }
+
+
+    public XAConnection wrap( final XAConnection xaConnection ) {
+        return proxy( XAConnection.class, ( method, args ) -> {
+            final Object result = invoke( method, xaConnection, args );
+            switch ( method.getName() ) {
+                case "getConnection":
+                    return wrap( (Connection) result );
+                case "getXAResource":
+                    return wrap( (XAResource) result );
+                default:
+                    return result;
+            }
+        } );
+    }
+
+
+    public XAResource wrap( final XAResource xaResource ) {
+        return proxy( XAResource.class, ( method, args ) -> {
+            final Phase phase = xaPhase( method.getName() );
+            if ( phase != null ) {
+                try {
+                    inject( phase );
+                } catch ( InjectedFailure failure ) {
+                    final XAException ex = new XAException( "Injected failure in " + phase + "." );
+                    ex.errorCode = XAException.XAER_RMFAIL;
+                    throw ex;
+                }
+            }
+            return invoke( method, xaResource, args );
+        } );
+    }
+
+
+    public Connection wrap( final Connection connection ) {
+        return proxy( Connection.class, ( method, args ) -> {
+            final Object result = invoke( method, connection, args );
+            if ( result instanceof CallableStatement ) {
+                return wrapStatement( CallableStatement.class, (CallableStatement) result );
+            }
+            if ( result instanceof PreparedStatement ) {
+                return wrapStatement( PreparedStatement.class, (PreparedStatement) result );
+            }
+            if ( result instanceof Statement ) {
+                return wrapStatement( Statement.class, (Statement) result );
+            }
+            return result;
+        } );
+    }
+
+
+    private <T extends Statement> T wrapStatement( final Class<T> type, final T statement ) {
+        return proxy( type, ( method, args ) -> {
+            if ( method.getName().startsWith( "execute" ) ) {
+                injectSql( Phase.STATEMENT );
+            }
+            return invoke( method, statement, args );
+        } );
+    }
+
+
+    /**
+     * Injects the configured fault of a phase reported as SQLException, e.g., for {@link Phase#CONNECT}.
+     */
+    public void injectSql( final Phase phase ) throws SQLException {
+        try {
+            inject( phase );
+        } catch ( InjectedFailure failure ) {
+            throw new SQLException( "Injected failure in " + phase + "." );
+        }
+    }
+
+
+    private void inject( final Phase phase ) throws InjectedFailure {
+        final Fault fault = getFault( phase );
+        invocations[phase.ordinal()].increment();
+        if ( fault == null ) {
+            return;
+        }
+
+        final long latency = fault.latency.sampleMillis( ThreadLocalRandom.current() );
+        if ( latency > 0 ) {
+            injectedLatencyMillis[phase.ordinal()].add( latency );
+            try {
+                Thread.sleep( latency );
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final double dice = ThreadLocalRandom.current().nextDouble();
+        if ( dice < fault.crashProbability ) {
+            crashes[phase.ordinal()].increment();
+            throw new SimulatedCrashException( phase );
+        }
+        if ( dice < fault.crashProbability + fault.failureProbability ) {
+            failures[phase.ordinal()].increment();
+            throw new InjectedFailure();
+        }
+    }
+
+
+    private static Phase xaPhase( final String method ) {
+        switch ( method ) {
+            case "start":
+                return Phase.START;
+            case "end":
+                return Phase.END;
+            case "prepare":
+                return Phase.PREPARE;
+            case "commit":
+                return Phase.COMMIT;
+            case "rollback":
+                return Phase.ROLLBACK;
+            default:
+                return null;
+        }
+    }
+
+
+    public long getInvocations( final Phase phase ) {
+        return invocations[phase.ordinal()].sum();
+    }
+
+
+    public long getFailures( final Phase phase ) {
+        return failures[phase.ordinal()].sum();
+    }
+
+
+    public long getCrashes( final Phase phase ) {
+        return crashes[phase.ordinal()].sum();
+    }
+
+
+    public long getInjectedLatencyMillis( final Phase phase ) {
+        return injectedLatencyMillis[phase.ordinal()].sum();
+    }
+
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for ( Phase phase : Phase.values() ) {
+            if ( getInvocations( phase ) == 0 ) {
+                continue;
+            }
+            sb.append( sb.length() == 0 ? "" : ", " ).append( phase ).append( ": " ).append( getInvocations( phase ) ).append( " calls, " )
+                    .append( getFailures( phase ) ).append( " failed, " ).append( getCrashes( phase ) ).append( " crashed, " )
+                    .append( getInjectedLatencyMillis( phase ) ).append( " ms delayed" );
+        }
+        return sb.toString();
+    }
+
+
+    private static LongAdder[] newCounters() {
+        final LongAdder[] counters = new LongAdder[Phase.values().length];
+        for ( int i = 0; i < counters.length; ++i ) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy( final Class<T> type, final Interceptor interceptor ) {
+        final InvocationHandler handler = ( proxy, method, args ) -> {
+            if ( method.getDeclaringClass() == Object.class && method.getName().equals( "equals" ) ) {
+                return proxy == args[0];
+            }
+            return interceptor.intercept( method, args );
+        };
+        return (T) Proxy.newProxyInstance( FaultInjector.class.getClassLoader(), new Class<?>[]{ type }, handler );
+    }
+
+
+    private static Object invoke( final Method method, final Object target, final Object[] args ) throws Throwable {
+        try {
+            return method.invoke( target, args );
+        } catch ( InvocationTargetException ex ) {
+            throw ex.getCause();
+        }
+    }
+
+
+    @FunctionalInterface
+    private interface Interceptor {
+
+        Object intercept( Method method, Object[] args ) throws Throwable;
+    }
+
+
+    private static class InjectedFailure extends Exception {
+    }
+
+
+    /**
+     * The fault of one phase: probabilities of a failure and of a crash per invocation, and the latency added to every
+     * invocation.
+     */
+    public static final class Fault {
+
+        public final double failureProbability;
+        public final double crashProbability;
+        public final LatencyDistribution latency;
+
+
+        public Fault( final double failureProbability, final double crashProbability, final LatencyDistribution latency ) {
+            if ( failureProbability < 0 || crashProbability < 0 || failureProbability + crashProbability > 1 ) {
+                throw new IllegalArgumentException( "Invalid failure or crash probability." );
+            }
+            this.failureProbability = failureProbability;
+            this.crashProbability = crashProbability;
+            this.latency = latency != null ? latency : LatencyDistribution.none();
+        }
+
+
+        public static Fault failing( final double failureProbability ) {
+            return new Fault( failureProbability, 0, LatencyDistribution.none() );
+        }
+
+
+        public static Fault crashing( final double crashProbability ) {
+            return new Fault( 0, crashProbability, LatencyDistribution.none() );
+        }
+
+
+        public static Fault slow( final LatencyDistribution latency ) {
+            return new Fault( 0, 0, latency );
+        }
+    }
+
+
+    /**
+     * Latency added to an operation, in milliseconds.
+     */
+    @FunctionalInterface
+    public interface LatencyDistribution {
+
+        long sampleMillis( ThreadLocalRandom random );
+
+
+        static LatencyDistribution none() {
+            return random -> 0;
+        }
+
+
+        static LatencyDistribution fixed( final long millis ) {
+            return random -> millis;
+        }
+
+
+        static LatencyDistribution uniform( final long minMillis, final long maxMillis ) {
+            return random -> random.nextLong( minMillis, maxMillis + 1 );
+        }
+
+
+        static LatencyDistribution exponential( final double meanMillis ) {
+            return random -> Math.round( -meanMillis * Math.log( 1 - random.nextDouble() ) );
+        }
+
+
+        /**
+         * Heavy-tailed latency: most samples close to minMillis, a few far above. Smaller shapes give longer tails.
+         */
+        static LatencyDistribution pareto( final double minMillis, final double shape ) {
+            return random -> Math.round( minMillis / Math.pow( 1 - random.nextDouble(), 1 / shape ) );
+        }
+    }
+
+
+    /**
+     * Thrown when an injected crash kills the transaction manager in the middle of an operation. Deliberately not an
+     * XAException or SQLException, so the transfer does not clean up its branches.
+     */
+    public static class SimulatedCrashException extends RuntimeException {
+
+        public final Phase phase;
+
+
+        public SimulatedCrashException( final Phase phase ) {
+            super( "Simulated crash in " + phase + "." );
+            this.phase = phase;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Runs a load of transfers between two banks under a fault scenario and reports throughput, tail latency and the cost
+ * of recovering from crashes.
+ * <p>
+ * After a crash between prepare and commit (see {@link FaultInjector.SimulatedCrashException}), the coordinator is
+ * considered down for restartDelayMillis; its prepared branches keep their row locks meanwhile. The restart then
+ * recovers both banks: the in-doubt branches of the debited bank, the coordinator, are rolled back (presumed abort),
+ * and those of the credited bank are committed if the debit has been committed before the crash, i.e., if the crash
+ * hit the second commit. The time from the crash to the end of the recovery is the stuck-branch duration.
+ * <p>
+ * The transfers are executed one after the other, since a bank has a single XA connection.
+ */
+public class FaultScenarioRunner {
+
+    private static final Logger LOG = Logger.getLogger( FaultScenarioRunner.class.getName() );
+
+    private final AbstractOracleXaBank fromBank;
+    private final AbstractOracleXaBank toBank;
+    private final List<String> ibans;
+    private final float value;
+    private final long restartDelayMillis;
+
+
+    public FaultScenarioRunner( final AbstractOracleXaBank fromBank, final AbstractOracleXaBank toBank, final List<String> ibans, final float value, final long restartDelayMillis ) {
+        if ( ibans.isEmpty() ) {
+            throw new IllegalArgumentException( "No accounts to transfer between." );
+        }
+        this.fromBank = fromBank;
+        this.toBank = toBank;
+        this.ibans = ibans;
+        this.value = value;
+        this.restartDelayMillis = restartDelayMillis;
+    }
+
+
+    /**
+     * Executes the given number of transfers between random accounts with the injectors installed on the banks.
+     *
+     * @param fromInjector injector of the debited bank (which also coordinates), or null
+     * @param toInjector injector of the credited bank, or null
+     */
+    public Report run( final String scenario, final FaultInjector fromInjector, final FaultInjector toInjector, final int transfers ) {
+        final Report report = new Report( scenario, transfers );
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        fromBank.setFaultInjector( fromInjector );
+        toBank.setFaultInjector( toInjector );
+        final long start = System.nanoTime();
+        try {
+            for ( int i = 0; i < transfers; ++i ) {
+                final String ibanFrom = ibans.get( random.nextInt( ibans.size() ) );
+                final String ibanTo = ibans.get( random.nextInt( ibans.size() ) );
+
+                final long transferStart = System.nanoTime();
+                try {
+                    fromBank.transfer( toBank, ibanFrom, ibanTo, value );
+                    report.latencies[i] = System.nanoTime() - transferStart;
+                    ++report.committed;
+                } catch ( FaultInjector.SimulatedCrashException ex ) {
+                    final long crashedAt = System.nanoTime();
+                    report.latencies[i] = crashedAt - transferStart;
+                    ++report.crashed;
+                    restart( report, crashedAt );
+                } catch ( RuntimeException ex ) {
+                    report.latencies[i] = System.nanoTime() - transferStart;
+                    ++report.failed;
+                }
+            }
+        } finally {
+            fromBank.setFaultInjector( null );
+            toBank.setFaultInjector( null );
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+
+        // e.g., branches whose commit failed without a crash
+        report.leftoverBranches = recover();
+
+        LOG.info( report + (fromInjector != null ? "\n  " + fromBank.BIC + ": " + fromInjector : "") + (toInjector != null ? "\n  " + toBank.BIC + ": " + toInjector : "") );
+        return report;
+    }
+
+
+    private void restart( final Report report, final long crashedAt ) {
+        try {
+            Thread.sleep( restartDelayMillis );
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+
+        final long recoveryStart = System.nanoTime();
+        final int recovered = recover();
+        final long recoveryEnd = System.nanoTime();
+
+        report.recoveredBranches += recovered;
+        report.totalRecoveryNanos += recoveryEnd - recoveryStart;
+        report.maxRecoveryNanos = Math.max( report.maxRecoveryNanos, recoveryEnd - recoveryStart );
+        report.totalStuckNanos += recoveryEnd - crashedAt;
+        report.maxStuckNanos = Math.max( report.maxStuckNanos, recoveryEnd - crashedAt );
+    }
+
+
+    private int recover() {
+        // the coordinator first, its in-doubt branches would block reading its commit decisions
+        return fromBank.rollbackPendingTransactions() + toBank.recoverPendingTransactions( fromBank );
+    }
+
+
+    public static final class Report {
+
+        public final String scenario;
+        private final long[] latencies;
+        private long committed;
+        private long failed;
+        private long crashed;
+        private long recoveredBranches;
+        private long leftoverBranches;
+        private long elapsedNanos;
+        private long totalRecoveryNanos;
+        private long maxRecoveryNanos;
+        private long totalStuckNanos;
+        private long maxStuckNanos;
+        private long[] sortedLatencies;
+
+
+        private Report( final String scenario, final int transfers ) {
+            this.scenario = scenario;
+            this.latencies = new long[transfers];
+        }
+
+
+        public long getCommitted() {
+            return committed;
+        }
+
+
+        public long getFailed() {
+            return failed;
+        }
+
+
+        public long getCrashed() {
+            return crashed;
+        }
+
+
+        /** @return the number of in-doubt branches resolved by restarts after crashes */
+        public long getRecoveredBranches() {
+            return recoveredBranches;
+        }
+
+
+        /** @return the number of in-doubt branches resolved after the run, without a crash */
+        public long getLeftoverBranches() {
+            return leftoverBranches;
+        }
+
+
+        /** @return committed transfers per second */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : committed * 1e9 / elapsedNanos;
+        }
+
+
+        /** @return the latency percentile (0 < percentile <= 100) of all transfers in milliseconds */
+        public double getLatencyMillis( final double percentile ) {
+            if ( sortedLatencies == null ) {
+                sortedLatencies = latencies.clone();
+                Arrays.sort( sortedLatencies );
+            }
+            if ( sortedLatencies.length == 0 ) {
+                return 0;
+            }
+            final int index = (int) Math.ceil( percentile / 100 * sortedLatencies.length ) - 1;
+            return sortedLatencies[Math.max( 0, Math.min( index, sortedLatencies.length - 1 ) )] / 1e6;
+        }
+
+
+        public double getMeanRecoveryMillis() {
+            return crashed == 0 ? 0 : totalRecoveryNanos / 1e6 / crashed;
+        }
+
+
+        public double getMaxRecoveryMillis() {
+            return maxRecoveryNanos / 1e6;
+        }
+
+
+        public double getMeanStuckBranchMillis() {
+            return crashed == 0 ? 0 : totalStuckNanos / 1e6 / crashed;
+        }
+
+
+        public double getMaxStuckBranchMillis() {
+            return maxStuckNanos / 1e6;
+        }
+
+
+        @Override
+        public String toString() {
+            return String.format( "Scenario %s: %d transfers in %d ms (%.1f committed/s), %d committed, %d failed, %d crashed%n" +
+                            "  latency p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n" +
+                            "  recovery mean %.2f ms / max %.2f ms, stuck branches mean %.2f ms / max %.2f ms, %d recovered, %d left over",
+                    scenario, latencies.length, TimeUnit.NANOSECONDS.toMillis( elapsedNanos ), getThroughput(), committed, failed, crashed,
+                    getLatencyMillis( 50 ), getLatencyMillis( 95 ), getLatencyMillis( 99 ), getLatencyMillis( 99.9 ), getLatencyMillis( 100 ),
+                    getMeanRecoveryMillis(), getMaxRecoveryMillis(), getMeanStuckBranchMillis(), getMaxStuckBranchMillis(), recoveredBranches, leftoverBranches );
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Remembers the outcome of recently executed transfers by their idempotency key, so that a client retrying a transfer
+ * gets the original outcome without another round trip to the database.
+ * <p>
+ * The cache holds at most maxSize keys and forgets a key after ttlMillis, whatever comes first. A forgotten key is not a
+ * problem for correctness: the key is also recorded in the database together with the debit, which rejects a second
+ * execution of a committed transfer.
+ */
+public final class IdempotencyCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+
+    // insertion order == age order, since put() re-inserts
+    private final LinkedHashMap<String, Outcome> outcomes;
+
+
+    public IdempotencyCache( final int maxSize, final long ttlMillis ) {
+        if ( maxSize < 1 || ttlMillis < 1 ) {
+            throw new IllegalArgumentException( "Size and time to live must be positive." );
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.outcomes = new LinkedHashMap<String, Outcome>( 16, 0.75f, false ) {
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry<String, Outcome> eldest ) {
+                return size() > IdempotencyCache.this.maxSize;
+            }
+        };
+    }
+
+
+    /**
+     * @return the outcome of the transfer with the given key, or null if it is unknown or expired
+     */
+    public synchronized Outcome get( final String idempotencyKey ) {
+        final Outcome outcome = outcomes.get( idempotencyKey );
+        if ( outcome == null ) {
+            return null;
+        }
+        if ( isExpired( outcome, System.currentTimeMillis() ) ) {
+            outcomes.remove( idempotencyKey );
+            return null;
+        }
+        return outcome;
+    }
+
+
+    public synchronized void put( final String idempotencyKey, final Outcome outcome ) {
+        outcomes.remove( idempotencyKey );
+        outcomes.put( idempotencyKey, outcome );
+        evictExpired();
+    }
+
+
+    public synchronized int size() {
+        return outcomes.size();
+    }
+
+
+    public synchronized void clear() {
+        outcomes.clear();
+    }
+
+
+    private void evictExpired() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Outcome> iterator = outcomes.values().iterator();
+        while ( iterator.hasNext() && isExpired( iterator.next(), now ) ) {
+            iterator.remove();
+        }
+    }
+
+
+    private boolean isExpired( final Outcome outcome, final long now ) {
+        return now - outcome.createdAt > ttlMillis;
+    }
+
+
+    /**
+     * The final outcome of a transfer: committed, or failed definitely, i.e., rolled back for a non-transient reason.
+     * The request describes the transfer, so that a key reused for a different transfer can be told apart.
+     */
+    public static final class Outcome {
+
+        public final String request;
+        public final boolean committed;
+        public final String failure;
+        private final long createdAt = System.currentTimeMillis();
+
+
+        private Outcome( final String request, final boolean committed, final String failure ) {
+            this.request = request;
+            this.committed = committed;
+            this.failure = failure;
+        }
+
+
+        public static Outcome committed( final String request ) {
+            return new Outcome( request, true, null );
+        }
+
+
+        public static Outcome failed( final String request, final String failure ) {
+            return new Outcome( request, false, failure );
+        }
+
+
+        /**
+         * Reproduces the outcome for a retrying client: returns normally if the transfer has been committed, throws
+         * the original failure otherwise.
+         */
+        public void replay() {
+            if ( !committed ) {
+                throw new RuntimeException( failure );
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Posts interest for one accrual period (Balance * InterestRate * accrual fraction) to all accounts of a bank. The
+ * InterestRate is an annual rate; the accrual fraction is the length of the period in years, e.g., {@link #days(int)
+ * days(1)} for a nightly run. The fraction is recorded with the run and cannot change when the run is continued.
+ * <p>
+ * The IBAN keyspace is split into ranges which are processed in parallel on a fork-join pool, every worker with its
+ * own local connection. A range is processed in chunks: the rows of a chunk are locked, updated with one array-bound
+ * batch and committed together with the progress of the range in the interest_checkpoint table. Concurrent transfers
+ * therefore wait at most for one chunk, and a failed run continues where it stopped when restarted with the same run id.
+ * <p>
+ * Balances are capped at the maximum capacity of an account (ck_full_account); the interest which does not fit is
+ * reported in the {@link Result}. Every posting is journaled in the transfer history with the chunk's batch.
+ */
+public class InterestAccrualJob {
+
+    private static final Logger LOG = Logger.getLogger( InterestAccrualJob.class.getName() );
+
+    private final AbstractOracleXaBank bank;
+    private final int parallelism;
+    private final int ranges;
+    private final int chunkSize;
+    private final BigDecimal accrualFraction;
+
+
+    /**
+     * @param accrualFraction the accrual period in years, e.g., {@link #days(int) days(1)}
+     */
+    public InterestAccrualJob( final AbstractOracleXaBank bank, final int parallelism, final int ranges, final int chunkSize, final BigDecimal accrualFraction ) {
+        if ( parallelism < 1 || ranges < 1 || chunkSize < 1 ) {
+            throw new IllegalArgumentException( "Parallelism, ranges and chunk size must be positive." );
+        }
+        if ( accrualFraction.signum() <= 0 ) {
+            throw new IllegalArgumentException( "The accrual fraction must be positive." );
+        }
+        this.bank = bank;
+        this.parallelism = parallelism;
+        this.ranges = ranges;
+        this.chunkSize = chunkSize;
+        this.accrualFraction = accrualFraction;
+    }
+
+
+    /**
+     * @return the accrual fraction of the given number of days (actual/365)
+     */
+    public static BigDecimal days( final int days ) {
+        return BigDecimal.valueOf( days ).divide( BigDecimal.valueOf( 365 ), 12, RoundingMode.HALF_EVEN );
+    }
+
+
+    /**
+     * Runs (or continues) the interest accrual with the given id. Ranges which have been completed by an earlier
+     * attempt of the same run are skipped, a partially processed range continues after its last committed chunk.
+     */
+    public Result run( final String runId ) throws SQLException {
+        final List<Checkpoint> checkpoints = loadOrCreateCheckpoints( runId );
+        final Result result = new Result();
+
+        final long start = System.nanoTime();
+        final ForkJoinPool pool = new ForkJoinPool( this.parallelism );
+        try {
+            pool.invoke( new RangeTask( checkpoints, 0, checkpoints.size(), result ) );
+        } finally {
+            pool.shutdown();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+
+        LOG.info( "Interest accrual " + runId + " on " + this.bank.BIC + ": " + result );
+        return result;
+    }
+
+
+    private List<Checkpoint> loadOrCreateCheckpoints( final String runId ) throws SQLException {
+        final List<Checkpoint> checkpoints = new ArrayList<>();
+
+        try ( Connection connection = this.bank.openLocalConnection() ) {
+            connection.setAutoCommit( false );
+
+            final String query = "SELECT RangeNo, LowIban, HighIban, LastIban, Done, AccrualFraction FROM interest_checkpoint WHERE RunId = ? ORDER BY RangeNo";
+            try ( PreparedStatement statement = connection.prepareStatement( query ) ) {
+                statement.setString( 1, runId );
+                try ( ResultSet resultSet = statement.executeQuery() ) {
+                    while ( resultSet.next() ) {
+                        final BigDecimal recordedFraction = resultSet.getBigDecimal( 6 );
+                        if ( recordedFraction.compareTo( this.accrualFraction ) != 0 ) {
+                            throw new IllegalArgumentException( "Interest accrual " + runId + " has been started with the accrual fraction " + recordedFraction.toPlainString() + "." );
+                        }
+                        checkpoints.add( new Checkpoint( runId, resultSet.getInt( 1 ), new KeyRange( resultSet.getString( 2 ), resultSet.getString( 3 ) ), resultSet.getString( 4 ), resultSet.getInt( 5 ) != 0 ) );
+                    }
+                }
+            }
+            if ( !checkpoints.isEmpty() ) {
+                LOG.info( "Continuing interest accrual " + runId + " from its checkpoint." );
+                return checkpoints;
+            }
+
+            final List<KeyRange> split = KeyRange.split( connection, this.ranges );
+            final String insert = "INSERT INTO interest_checkpoint (RunId, RangeNo, LowIban, HighIban, AccrualFraction) VALUES (?, ?, ?, ?, ?)";
+            try ( PreparedStatement statement = connection.prepareStatement( insert ) ) {
+                for ( int i = 0; i < split.size(); ++i ) {
+                    final KeyRange range = split.get( i );
+                    statement.setString( 1, runId );
+                    statement.setInt( 2, i );
+                    statement.setString( 3, range.low );
+                    statement.setString( 4, range.high );
+                    statement.setBigDecimal( 5, this.accrualFraction );
+                    statement.addBatch();
+                    checkpoints.add( new Checkpoint( runId, i, range, null, false ) );
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+        return checkpoints;
+    }
+
+
+    private void processRange( final Checkpoint checkpoint, final Result result ) throws SQLException {
+        if ( checkpoint.done ) {
+            return;
+        }
+
+        try ( Connection connection = this.bank.openLocalConnection() ) {
+            connection.setAutoCommit( false );
+
+            String last = checkpoint.lastIban != null ? checkpoint.lastIban : checkpoint.range.low;
+            while ( true ) {
+                final KeyRange remaining = new KeyRange( last, checkpoint.range.high );
+                final String chunkHigh = findChunkEnd( connection, remaining );
+                if ( chunkHigh == null ) {
+                    markDone( connection, checkpoint );
+                    connection.commit();
+                    return;
+                }
+
+                try {
+                    processChunk( connection, checkpoint, new KeyRange( last, chunkHigh ), result );
+                } catch ( SQLException ex ) {
+                    connection.rollback();
+                    throw ex;
+                }
+                last = chunkHigh;
+            }
+        }
+    }
+
+
+    /**
+     * @return the highest IBAN of the next chunk within the given range, or null if the range is exhausted. Does not lock.
+     */
+    private String findChunkEnd( final Connection connection, final KeyRange remaining ) throws SQLException {
+        final String query = "SELECT MAX(IBAN) FROM (SELECT IBAN FROM account WHERE " + remaining.predicate() + " ORDER BY IBAN) WHERE ROWNUM <= ?";
+        try ( PreparedStatement statement = connection.prepareStatement( query ) ) {
+            final int next = remaining.bind( statement, 1 );
+            statement.setInt( next, this.chunkSize );
+            try ( ResultSet resultSet = statement.executeQuery() ) {
+                return resultSet.next() ? resultSet.getString( 1 ) : null;
+            }
+        }
+    }
+
+
+    private void processChunk( final Connection connection, final Checkpoint checkpoint, final KeyRange chunk, final Result result ) throws SQLException {
+        // The row locks of the chunk are held from here until the commit below
+        final long lockStart = System.nanoTime();
+
+        int accounts = 0;
+        int capped = 0;
+        BigDecimal interestTotal = BigDecimal.ZERO;
+        BigDecimal overflowTotal = BigDecimal.ZERO;
+        final Map<String, BigDecimal> postings = new HashMap<>();
+
+        // a NULL balance (allowed by the constraints) earns no interest
+        final String query = "SELECT IBAN, Balance, NVL(InterestRate, 0) FROM account WHERE " + chunk.predicate() + " AND Balance IS NOT NULL FOR UPDATE";
+        final String update = "UPDATE account SET Balance = ? WHERE IBAN = ?";
+        try ( PreparedStatement select = connection.prepareStatement( query );
+              PreparedStatement statement = connection.prepareStatement( update );
+              TransferHistory.Journal journal = TransferHistory.openJournal( connection, this.chunkSize ) ) {
+            chunk.bind( select, 1 );
+            try ( ResultSet resultSet = select.executeQuery() ) {
+                while ( resultSet.next() ) {
+                    final BigDecimal balance = resultSet.getBigDecimal( 2 );
+                    final BigDecimal interest = balance.multiply( resultSet.getBigDecimal( 3 ) ).multiply( this.accrualFraction ).setScale( 2, RoundingMode.HALF_EVEN );
+                    if ( interest.signum() <= 0 ) {
+                        continue;
+                    }
+
+                    BigDecimal newBalance = balance.add( interest );
+                    if ( newBalance.compareTo( AbstractOracleXaBank.MAX_BALANCE ) > 0 ) {
+                        overflowTotal = overflowTotal.add( newBalance.subtract( AbstractOracleXaBank.MAX_BALANCE ) );
+                        newBalance = AbstractOracleXaBank.MAX_BALANCE.max( balance );
+                        ++capped;
+                    }
+                    if ( newBalance.compareTo( balance ) == 0 ) {
+                        continue;
+                    }
+                    interestTotal = interestTotal.add( newBalance.subtract( balance ) );
+
+                    final String iban = resultSet.getString( 1 );
+                    statement.setBigDecimal( 1, newBalance );
+                    statement.setString( 2, iban );
+                    statement.addBatch();
+                    journal.add( iban, newBalance.subtract( balance ), this.bank.BIC, null, "Interest " + checkpoint.runId );
+                    postings.put( iban, newBalance.subtract( balance ) );
+                    ++accounts;
+                }
+            }
+            if ( accounts > 0 ) {
+                statement.executeBatch();
+            }
+            journal.flush();
+        }
+
+        final String progress = "UPDATE interest_checkpoint SET LastIban = ? WHERE RunId = ? AND RangeNo = ?";
+        try ( PreparedStatement statement = connection.prepareStatement( progress ) ) {
+            statement.setString( 1, chunk.high );
+            statement.setString( 2, checkpoint.runId );
+            statement.setInt( 3, checkpoint.rangeNo );
+            statement.executeUpdate();
+        }
+
+        connection.commit();
+        result.chunkCommitted( accounts, capped, interestTotal, overflowTotal, System.nanoTime() - lockStart );
+
+        final AccountConstraintIndex index = this.bank.getConstraintIndex();
+        if ( index != null ) {
+            for ( Map.Entry<String, BigDecimal> posting : postings.entrySet() ) {
+                index.apply( posting.getKey(), posting.getValue() );
+            }
+        }
+    }
+
+
+    private void markDone( final Connection connection, final Checkpoint checkpoint ) throws SQLException {
+        final String update = "UPDATE interest_checkpoint SET Done = 1 WHERE RunId = ? AND RangeNo = ?";
+        try ( PreparedStatement statement = connection.prepareStatement( update ) ) {
+            statement.setString( 1, checkpoint.runId );
+            statement.setInt( 2, checkpoint.rangeNo );
+            statement.executeUpdate();
+        }
+    }
+
+
+    private static final class Checkpoint {
+
+        private final String runId;
+        private final int rangeNo;
+        private final KeyRange range;
+        private final String lastIban;
+        private final boolean done;
+
+
+        private Checkpoint( final String runId, final int rangeNo, final KeyRange range, final String lastIban, final boolean done ) {
+            this.runId = runId;
+            this.rangeNo = rangeNo;
+            this.range = range;
+            this.lastIban = lastIban;
+            this.done = done;
+        }
+    }
+
+
+    private final class RangeTask extends RecursiveAction {
+
+        private final List<Checkpoint> checkpoints;
+        private final int from;
+        private final int to;
+        private final Result result;
+
+
+        private RangeTask( final List<Checkpoint> checkpoints, final int from, final int to, final Result result ) {
+            this.checkpoints = checkpoints;
+            this.from = from;
+            this.to = to;
+            this.result = result;
+        }
+
+
+        @Override
+        protected void compute() {
+            if ( to - from > 1 ) {
+                final int middle = (from + to) >>> 1;
+                invokeAll( new RangeTask( checkpoints, from, middle, result ), new RangeTask( checkpoints, middle, to, result ) );
+                return;
+            }
+            if ( to == from ) {
+                return;
+            }
+
+            final Checkpoint checkpoint = checkpoints.get( from );
+            try {
+                processRange( checkpoint, result );
+            } catch ( SQLException ex ) {
+                LOG.log( Level.WARNING, "Interest accrual failed in range " + checkpoint.range + ".", ex );
+                throw new RuntimeException( "Interest accrual failed: " + ex.getMessage(), ex );
+            }
+        }
+    }
+
+
+    /**
+     * Throughput and lock statistics of a run. The lock hold time of a chunk is the longest a concurrent transfer on
+     * one of its accounts has to wait.
+     */
+    public static final class Result {
+
+        private long accounts;
+        private long chunks;
+        private long cappedAccounts;
+        private BigDecimal interest = BigDecimal.ZERO;
+        private BigDecimal overflow = BigDecimal.ZERO;
+        private long totalLockNanos;
+        private long maxLockNanos;
+        private volatile long elapsedNanos;
+
+
+        private synchronized void chunkCommitted( final int accounts, final int capped, final BigDecimal interest, final BigDecimal overflow, final long lockNanos ) {
+            this.accounts += accounts;
+            this.chunks += 1;
+            this.cappedAccounts += capped;
+            this.interest = this.interest.add( interest );
+            this.overflow = this.overflow.add( overflow );
+            this.totalLockNanos += lockNanos;
+            this.maxLockNanos = Math.max( this.maxLockNanos, lockNanos );
+        }
+
+
+        /** @return the number of accounts whose balance was updated */
+        public synchronized long getAccounts() {
+            return accounts;
+        }
+
+
+        public synchronized long getChunks() {
+            return chunks;
+        }
+
+
+        /** @return the number of accounts which reached the maximum capacity and did not receive their full interest */
+        public synchronized long getCappedAccounts() {
+            return cappedAccounts;
+        }
+
+
+        /** @return the interest which has been posted */
+        public synchronized BigDecimal getInterest() {
+            return interest;
+        }
+
+
+        /** @return the interest which has not been posted because of ck_full_account */
+        public synchronized BigDecimal getOverflow() {
+            return overflow;
+        }
+
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis( elapsedNanos );
+        }
+
+
+        /** @return updated accounts per second */
+        public synchronized double getThroughput() {
+            return elapsedNanos == 0 ? 0 : accounts * 1e9 / elapsedNanos;
+        }
+
+
+        public synchronized double getMeanLockHoldMillis() {
+            return chunks == 0 ? 0 : totalLockNanos / 1e6 / chunks;
+        }
+
+
+        public synchronized double getMaxLockHoldMillis() {
+            return maxLockNanos / 1e6;
+        }
+
+
+        @Override
+        public synchronized String toString() {
+            return String.format( "%d accounts in %d chunks, %d ms (%.1f accounts/s), interest %s, capped %d (overflow %s), lock hold mean %.2f ms / max %.2f ms",
+                    accounts, chunks, getElapsedMillis(), getThroughput(), interest.toPlainString(), cappedAccounts, overflow.toPlainString(), getMeanLockHoldMillis(), getMaxLockHoldMillis() );
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A half-open range (low, high] of the IBAN keyspace of the account table. A missing bound (null) is unbounded, so
+ * the first and the last range of a split also cover accounts which are inserted after the split was computed.
+ */
+public final class KeyRange {
+
+    /** Exclusive lower bound, or null if unbounded. */
+    public final String low;
+
+    /** Inclusive upper bound, or null if unbounded. */
+    public final String high;
+
+
+    public KeyRange( final String low, final String high ) {
+        this.low = low;
+        this.high = high;
+    }
+
+
+    /**
+     * Splits the IBANs of the account table into (at most) the given number of ranges holding roughly the same number
+     * of accounts each. The boundaries are computed by the database, only one IBAN per range is transferred.
+     */
+    public static List<KeyRange> split( final Connection connection, final int ranges ) throws SQLException {
+        final List<KeyRange> result = new ArrayList<>( ranges );
+
+        final String query = "SELECT MAX(IBAN) FROM (" +
+                "SELECT IBAN, NTILE(?) OVER (ORDER BY IBAN) AS Bucket FROM account" +
+                ") GROUP BY Bucket ORDER BY Bucket";
+        try ( PreparedStatement statement = connection.prepareStatement( query ) ) {
+            statement.setInt( 1, ranges );
+            try ( ResultSet resultSet = statement.executeQuery() ) {
+                String low = null;
+                while ( resultSet.next() ) {
+                    final String high = resultSet.getString( 1 );
+                    result.add( new KeyRange( low, high ) );
+                    low = high;
+                }
+            }
+        }
+
+        if ( result.isEmpty() ) {
+            result.add( new KeyRange( null, null ) );
+        } else {
+            // open the last range to the top
+            final KeyRange last = result.remove( result.size() - 1 );
+            result.add( new KeyRange( last.low, null ) );
+        }
+        return result;
+    }
+
+
+    /**
+     * @return the SQL predicate restricting the IBAN column to this range, to be bound with {@link #bind(PreparedStatement, int)}
+     */
+    public String predicate() {
+        if ( low == null && high == null ) {
+            return "1 = 1";
+        }
+        if ( low == null ) {
+            return "IBAN <= ?";
+        }
+        if ( high == null ) {
+            return "IBAN > ?";
+        }
+        return "IBAN > ? AND IBAN <= ?";
+    }
+
+
+    /**
+     * Binds the bounds of this range to the placeholders created by {@link #predicate()}.
+     *
+     * @return the next free parameter index
+     */
+    public int bind( final PreparedStatement statement, int parameterIndex ) throws SQLException {
+        if ( low != null ) {
+            statement.setString( parameterIndex++, low );
+        }
+        if ( high != null ) {
+            statement.setString( parameterIndex++, high );
+        }
+        return parameterIndex;
+    }
+
+
+    @Override
+    public String toString() {
+        return "(" + (low == null ? "-inf" : low) + ", " + (high == null ? "+inf" : high) + "]";
+    }
+}
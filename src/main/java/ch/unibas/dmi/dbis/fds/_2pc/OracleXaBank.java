@@ -8,10 +8,13 @@ import javax.sql.XAConnection;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -21,6 +24,17 @@ import java.sql.SQLException;
  */
 public class OracleXaBank extends AbstractOracleXaBank {
 
+    private static final int MAX_TRANSFER_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+
+    // ORA-00054 resource busy, ORA-00060 deadlock, ORA-02049 distributed transaction waiting for lock, ORA-30006 resource busy (WAIT timeout)
+    private static final int[] TRANSIENT_ORACLE_ERRORS = { 54, 60, 2049, 30006 };
+
+    // ORA-01591 lock held by in-doubt distributed transaction: an earlier attempt may still be committed by the recovery
+    private static final int IN_DOUBT_ORACLE_ERROR = 1591;
+
+    private final IdempotencyCache idempotencyCache = new IdempotencyCache( 10000, TimeUnit.HOURS.toMillis( 24 ) );
+
 
     public OracleXaBank( final String BIC, final String jdbcConnectionString, final String dbmsUsername, final String dbmsPassword ) throws SQLException {
         super( BIC, jdbcConnectionString, dbmsUsername, dbmsPassword );
@@ -53,6 +67,185 @@ public class OracleXaBank extends AbstractOracleXaBank {
 
     @Override
     public void transfer( final AbstractOracleXaBank TO_BANK, final String ibanFrom, final String ibanTo, final float value ) {
+        transferOnce(TO_BANK, ibanFrom, ibanTo, value, null);
+    }
+
+
+    /**
+     * Transfer which is safe to retry: the idempotency key is recorded in the debit branch, so a transfer with a known
+     * key is never executed twice. Recent outcomes are answered from the {@link IdempotencyCache} without touching the
+     * database, and transient failures (lock timeouts, deadlocks, and XAER_RMFAIL after reconnecting to both banks) are
+     * retried here.
+     * <p>
+     * Only definite outcomes are cached: commits, and failures raised before prepare, after which the transfer has
+     * certainly been rolled back. Failures with an unknown outcome (in prepare or commit, or ORA-01591 because an earlier
+     * attempt is still in doubt) are reported but not remembered, so a later retry asks the database again. A key
+     * reused for a different transfer is rejected.
+     */
+    @Override
+    public void transfer( final AbstractOracleXaBank TO_BANK, final String ibanFrom, final String ibanTo, final float value, final String idempotencyKey ) {
+        if (idempotencyKey == null) {
+            transfer(TO_BANK, ibanFrom, ibanTo, value);
+            return;
+        }
+
+        final String request = ibanFrom + " -> " + TO_BANK.BIC + "/" + ibanTo + ": " + new BigDecimal(Float.toString(value)).toPlainString();
+        final IdempotencyCache.Outcome cached = idempotencyCache.get(idempotencyKey);
+        if (cached != null) {
+            if (!cached.request.equals(request)) {
+                throw new RuntimeException("Transfer failed: " + IdempotencyKeyReusedException.message(idempotencyKey));
+            }
+            LOG.info("Replaying outcome of transfer " + idempotencyKey);
+            cached.replay();
+            return;
+        }
+
+        for (int attempt = 1; ; ++attempt) {
+            try {
+                transferOnce(TO_BANK, ibanFrom, ibanTo, value, idempotencyKey);
+                idempotencyCache.put(idempotencyKey, IdempotencyCache.Outcome.committed(request));
+                return;
+            } catch (FaultInjector.SimulatedCrashException ex) {
+                throw ex; // a crashed coordinator does not remember anything
+            } catch (RuntimeException ex) {
+                if (ex.getCause() instanceof DuplicateTransferException) {
+                    // committed by an earlier attempt whose outcome we did not see
+                    LOG.info("Transfer " + idempotencyKey + " has already been committed.");
+                    idempotencyCache.put(idempotencyKey, IdempotencyCache.Outcome.committed(request));
+                    return;
+                }
+                if (ex.getCause() instanceof IdempotencyKeyReusedException) {
+                    throw ex; // says nothing about the transfer the key belongs to
+                }
+                if (!isTransient(ex.getCause())) {
+                    if (!(ex instanceof TransferFailedException) || ((TransferFailedException) ex).definite) {
+                        idempotencyCache.put(idempotencyKey, IdempotencyCache.Outcome.failed(request, ex.getMessage()));
+                    }
+                    throw ex;
+                }
+                if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+                    throw ex;
+                }
+                LOG.warning("Retrying transfer " + idempotencyKey + " after transient failure (attempt " + attempt + "): " + ex.getMessage());
+                try {
+                    Thread.sleep(RETRY_BACKOFF_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+                if (isResourceManagerFailure(ex.getCause())) {
+                    // the connection is gone, retrying on it would fail the same way; we do not know which bank's it was
+                    try {
+                        this.reconnect();
+                        TO_BANK.reconnect();
+                    } catch (SQLException reconnectFailure) {
+                        ex.addSuppressed(reconnectFailure);
+                        throw ex;
+                    }
+                }
+            }
+        }
+    }
+
+
+    public IdempotencyCache getIdempotencyCache() {
+        return idempotencyCache;
+    }
+
+
+    private static boolean isResourceManagerFailure( final Throwable cause ) {
+        return cause instanceof XAException && ((XAException) cause).errorCode == XAException.XAER_RMFAIL;
+    }
+
+
+    private static boolean isTransient( final Throwable cause ) {
+        if (cause instanceof XAException) {
+            final int errorCode = ((XAException) cause).errorCode;
+            return errorCode == XAException.XAER_RMFAIL || errorCode == XAException.XA_RETRY
+                    || errorCode == XAException.XA_RBDEADLOCK || errorCode == XAException.XA_RBTIMEOUT || errorCode == XAException.XA_RBTRANSIENT;
+        }
+        if (cause instanceof SQLTransientException) {
+            return true;
+        }
+        if (cause instanceof SQLException) {
+            final int errorCode = ((SQLException) cause).getErrorCode();
+            for (int transientError : TRANSIENT_ORACLE_ERRORS) {
+                if (errorCode == transientError) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean isOutcomeUnknown( final Throwable cause ) {
+        return cause instanceof SQLException && ((SQLException) cause).getErrorCode() == IN_DOUBT_ORACLE_ERROR;
+    }
+
+
+    private void recordIdempotencyKey( final Connection connection, final String idempotencyKey, final String ibanFrom, final String counterBic, final String ibanTo, final BigDecimal amount ) throws SQLException {
+        String insert = "INSERT INTO transfer_idempotency (IdempotencyKey, IBAN, Amount, CounterBIC, CounterIBAN, CreatedAt) VALUES (?, ?, ?, ?, ?, SYSTIMESTAMP)";
+        try (PreparedStatement statement = connection.prepareStatement(insert)) {
+            statement.setString(1, idempotencyKey);
+            statement.setString(2, ibanFrom);
+            statement.setBigDecimal(3, amount);
+            statement.setString(4, counterBic);
+            statement.setString(5, ibanTo);
+            statement.executeUpdate();
+        } catch (SQLException ex) {
+            if (ex.getErrorCode() != 1) { // ORA-00001 unique constraint violated
+                throw ex;
+            }
+            // the key is known: it must belong to the same transfer
+            String query = "SELECT IBAN, Amount, CounterBIC, CounterIBAN FROM transfer_idempotency WHERE IdempotencyKey = ?";
+            try (PreparedStatement statement = connection.prepareStatement(query)) {
+                statement.setString(1, idempotencyKey);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()
+                            && ibanFrom.equals(resultSet.getString(1))
+                            && amount.compareTo(resultSet.getBigDecimal(2)) == 0
+                            && counterBic.equals(resultSet.getString(3))
+                            && ibanTo.equals(resultSet.getString(4))) {
+                        throw new DuplicateTransferException(idempotencyKey, ex);
+                    }
+                }
+            }
+            throw new IdempotencyKeyReusedException(idempotencyKey, ex);
+        }
+    }
+
+
+    /**
+     * Rejects a transfer which would fail on the account constraints known by the banks' constraint indexes. Does
+     * nothing for banks without pre-validation.
+     */
+    private void preValidate( final AbstractOracleXaBank TO_BANK, final String ibanFrom, final String ibanTo, final BigDecimal amount ) {
+        final AccountConstraintIndex fromIndex = this.getConstraintIndex();
+        final AccountConstraintIndex toIndex = TO_BANK.getConstraintIndex();
+        if (fromIndex == null && toIndex == null) {
+            return;
+        }
+
+        String rejection = null;
+        try {
+            if (fromIndex != null) {
+                rejection = fromIndex.checkDebit(ibanFrom, amount);
+            }
+            if (rejection == null && toIndex != null) {
+                rejection = toIndex.checkCredit(ibanTo, amount);
+            }
+        } catch (SQLException ex) {
+            throw new TransferFailedException("Transfer failed: " + ex.getMessage(), ex, false);
+        }
+        if (rejection != null) {
+            throw new RuntimeException("Transfer failed: " + rejection);
+        }
+        (fromIndex != null ? fromIndex : toIndex).accepted();
+    }
+
+
+    private void transferOnce( final AbstractOracleXaBank TO_BANK, final String ibanFrom, final String ibanTo, final float value, final String idempotencyKey ) {
         // TODO: your turn ;-)
 
         // 1. Start transactions on both banks
@@ -63,9 +256,14 @@ public class OracleXaBank extends AbstractOracleXaBank {
         // 6. Commit or rollback
 
         if (value <= 0f) throw new RuntimeException("Transfer failed: Negative or zero transfer value.");
+        final BigDecimal amount = new BigDecimal(Float.toString(value)); // the same value for the balances and the history
+
+        // 0. Fail fast on locally known constraints, before any branch is started (optional)
+        preValidate(TO_BANK, ibanFrom, ibanTo, amount);
 
         XAConnection fromXaConnection;
         XAConnection toXaConnection;
+        boolean prepareStarted = false;
         XAResource fromResource = null;
         XAResource toResource = null;
         Xid fromId = null;
@@ -82,26 +280,32 @@ public class OracleXaBank extends AbstractOracleXaBank {
             fromId = this.startTransaction();
             toId = TO_BANK.startTransaction(fromId);
 
-            // 2. Debit this bank (ibanFrom and value)
+            // 2. Debit this bank (ibanFrom and value), journaled in the same branch
             try (Connection connection = fromXaConnection.getConnection()) {
+                if (idempotencyKey != null) {
+                    recordIdempotencyKey(connection, idempotencyKey, ibanFrom, TO_BANK.BIC, ibanTo, amount);
+                }
+
                 String update = "UPDATE account SET Balance = Balance - ? WHERE IBAN = ? AND Balance >= ?";
                 try (PreparedStatement statement = connection.prepareStatement(update)) {
-                    statement.setFloat(1, value);
+                    statement.setBigDecimal(1, amount);
                     statement.setString(2, ibanFrom);
-                    statement.setFloat(3, value);
+                    statement.setBigDecimal(3, amount);
 
                     int rowsAffected = statement.executeUpdate();
                     if (rowsAffected == 0) {
                         throw new SQLException("Insufficient funds or invalid IBAN: " + ibanFrom);
                     }
                 }
+                TransferHistory.record(connection, ibanFrom, amount.negate(), TO_BANK.BIC, ibanTo, "Transfer");
+                recordCommitDecision(connection, fromId); // committed with the debit, tells the recovery to commit the credit
             }
 
-            // 3. Credit the TO_BANK (ibanTo and value)
+            // 3. Credit the TO_BANK (ibanTo and value), journaled in the same branch
             try (Connection connection = toXaConnection.getConnection()) {
                 String update = "UPDATE account SET Balance = Balance + ? WHERE IBAN = ?";
                 try (PreparedStatement statement = connection.prepareStatement(update)) {
-                    statement.setFloat(1, value);
+                    statement.setBigDecimal(1, amount);
                     statement.setString(2, ibanTo);
 
                     int rowsAffected = statement.executeUpdate();
@@ -109,6 +313,7 @@ public class OracleXaBank extends AbstractOracleXaBank {
                         throw new SQLException("Invalid IBAN: " + ibanTo);
                     }
                 }
+                TransferHistory.record(connection, ibanTo, amount, this.BIC, ibanFrom, "Transfer");
             }
 
             // 4. End the transactions
@@ -129,6 +334,7 @@ public class OracleXaBank extends AbstractOracleXaBank {
              * This process isn't supported by XA because XA has no way to transfer the role
              * of coordinator between agents.
              */
+            prepareStarted = true; // from here on, a failure does not imply a rollback
             int fromPrepare = fromResource.prepare(fromId);
             int toPrepare = toResource.prepare(toId);
 
@@ -150,6 +356,14 @@ public class OracleXaBank extends AbstractOracleXaBank {
             if (fromPrepare == XAResource.XA_OK && toPrepare == XAResource.XA_OK) {
                 fromResource.commit(fromId, false); // not one-phase
                 toResource.commit(toId, false);
+                this.forgetCommitDecision(fromId); // both branches committed, nothing left to recover
+
+                if (this.getConstraintIndex() != null) {
+                    this.getConstraintIndex().apply(ibanFrom, amount.negate());
+                }
+                if (TO_BANK.getConstraintIndex() != null) {
+                    TO_BANK.getConstraintIndex().apply(ibanTo, amount);
+                }
             } else {
                 /*
                  * In Presumed Abort 2PC, this else statement will be entered if the coordinator
@@ -187,7 +401,44 @@ public class OracleXaBank extends AbstractOracleXaBank {
                 }
             }
 
-            throw new RuntimeException("Transfer failed: " + ex.getMessage(), ex);
+            throw new TransferFailedException("Transfer failed: " + ex.getMessage(), ex, !prepareStarted && !isOutcomeUnknown(ex));
+        }
+    }
+
+
+    private static class DuplicateTransferException extends SQLException {
+
+        DuplicateTransferException( final String idempotencyKey, final SQLException cause ) {
+            super( "Duplicate transfer: " + idempotencyKey, cause );
+        }
+    }
+
+
+    private static class IdempotencyKeyReusedException extends SQLException {
+
+        IdempotencyKeyReusedException( final String idempotencyKey, final SQLException cause ) {
+            super( message( idempotencyKey ), cause );
+        }
+
+
+        static String message( final String idempotencyKey ) {
+            return "Idempotency key " + idempotencyKey + " has already been used for a different transfer.";
+        }
+    }
+
+
+    /**
+     * A failed transfer. The failure is definite if it has been raised before prepare, so the transfer has certainly
+     * been rolled back, and it is not caused by an earlier attempt in doubt.
+     */
+    private static class TransferFailedException extends RuntimeException {
+
+        final boolean definite;
+
+
+        TransferFailedException( final String message, final Throwable cause, final boolean definite ) {
+            super( message, cause );
+            this.definite = definite;
         }
     }
 }
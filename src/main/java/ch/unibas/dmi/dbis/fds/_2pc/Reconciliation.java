@@ -0,0 +1,463 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+
+/**
+ * Proves that no money got lost or created across banks.
+ * <p>
+ * Every bank's balances must equal its ledger, the sum of its transfer_history entries (starting with the opening
+ * balances). The IBAN space is split into ranges and, for every bank and range in parallel, the database computes the
+ * number of accounts, their total and an order-independent hash (the sum of ORA_HASH over IBAN and amount) for both the
+ * account table and the ledger. Only these digests are transferred. For a range whose digests differ, a single
+ * set-based query reports just the accounts which disagree with their ledger.
+ * <p>
+ * Across banks, the sum of all balances is compared with the expected total, e.g., the total of the previous day plus
+ * the interest posted since.
+ * <p>
+ * All queries are flashback reads as of one SCN per bank, pinned for all its ranges when the run starts (this needs
+ * EXECUTE on DBMS_FLASHBACK). They take no row locks, and a bank's digests are consistent with each other even while
+ * transfers go on. The banks are pinned one after the other, though, and the two branches of a transfer commit one
+ * after the other: the conservation check across banks is only exact if no transfer between them commits meanwhile,
+ * i.e., transfers have to be quiesced for it.
+ * <p>
+ * The ledger is not aggregated from the beginning on every run: ledger_snapshot keeps the closing total of every account
+ * up to an EntryNo, so a run only aggregates the entries booked since. A run folds the entries up to the highest EntryNo
+ * seen by the previous run into the snapshot, so an entry which had been numbered but not yet committed back then is
+ * not missed. This relies on EntryNo increasing (a single instance) and on no transfer staying open from one run to the
+ * next. Runs must not overlap; the second of two overlapping runs does not fold.
+ */
+public class Reconciliation {
+
+    private static final Logger LOG = Logger.getLogger( Reconciliation.class.getName() );
+
+    private static final String PIN = "SELECT DBMS_FLASHBACK.GET_SYSTEM_CHANGE_NUMBER FROM dual";
+    private static final String WATERMARK = "SELECT SnapshotEntryNo, PendingEntryNo FROM ledger_watermark AS OF SCN ?";
+    private static final String ACCOUNT_DIGEST = "SELECT COUNT(*), NVL(SUM(Balance), 0), NVL(SUM(ORA_HASH(IBAN || '|' || TO_CHAR(Balance))), 0) " +
+            "FROM account AS OF SCN ? WHERE %1$s";
+    // closing totals of the snapshot plus the entries booked since
+    private static final String LEDGER = "SELECT IBAN, SUM(Amount) AS Total FROM (" +
+            "SELECT IBAN, Total AS Amount FROM ledger_snapshot AS OF SCN ? WHERE %1$s " +
+            "UNION ALL SELECT IBAN, Amount FROM transfer_history AS OF SCN ? WHERE EntryNo > ? AND %1$s) GROUP BY IBAN";
+    private static final String LEDGER_DIGEST = "SELECT COUNT(*), NVL(SUM(Total), 0), NVL(SUM(ORA_HASH(IBAN || '|' || TO_CHAR(Total))), 0) " +
+            "FROM (" + LEDGER + ")";
+    private static final String DISCREPANCIES = "SELECT NVL(a.IBAN, l.IBAN), a.Balance, l.Total " +
+            "FROM (SELECT IBAN, Balance FROM account AS OF SCN ? WHERE %1$s) a " +
+            "FULL OUTER JOIN (" + LEDGER + ") l ON a.IBAN = l.IBAN " +
+            "WHERE DECODE(a.Balance, l.Total, 0, 1) = 1 AND ROWNUM <= ?";
+    private static final String FOLD_WATERMARK = "UPDATE ledger_watermark SET SnapshotEntryNo = PendingEntryNo, " +
+            "PendingEntryNo = (SELECT NVL(MAX(EntryNo), 0) FROM transfer_history AS OF SCN ?) WHERE SnapshotEntryNo = ? AND PendingEntryNo = ?";
+    private static final String FOLD_SNAPSHOT = "MERGE INTO ledger_snapshot s " +
+            "USING (SELECT IBAN, SUM(Amount) AS Amount FROM transfer_history AS OF SCN ? WHERE EntryNo > ? AND EntryNo <= ? GROUP BY IBAN) h " +
+            "ON (s.IBAN = h.IBAN) " +
+            "WHEN MATCHED THEN UPDATE SET s.Total = s.Total + h.Amount " +
+            "WHEN NOT MATCHED THEN INSERT (IBAN, Total) VALUES (h.IBAN, h.Amount)";
+
+    private final List<AbstractOracleXaBank> banks;
+    private final int ranges;
+    private final int parallelism;
+    private final int maxDiscrepanciesPerRange;
+
+
+    public Reconciliation( final List<AbstractOracleXaBank> banks, final int ranges, final int parallelism, final int maxDiscrepanciesPerRange ) {
+        if ( banks.isEmpty() || ranges < 1 || parallelism < 1 || maxDiscrepanciesPerRange < 1 ) {
+            throw new IllegalArgumentException( "Banks, ranges, parallelism and discrepancy limit must be positive." );
+        }
+        this.banks = banks;
+        this.ranges = ranges;
+        this.parallelism = parallelism;
+        this.maxDiscrepanciesPerRange = maxDiscrepanciesPerRange;
+    }
+
+
+    /**
+     * @param expectedTotal the expected sum of all balances of all banks, or null to skip the conservation check
+     */
+    public Report run( final BigDecimal expectedTotal ) throws SQLException {
+        final long start = System.nanoTime();
+
+        // The same boundaries for all banks, so the ranges of different banks are comparable
+        final List<KeyRange> split;
+        try ( Connection connection = banks.get( 0 ).openLocalConnection() ) {
+            split = KeyRange.split( connection, this.ranges );
+        }
+
+        // One point in time per bank, taken as close together as possible
+        final Map<String, Pin> pins = new HashMap<>();
+        for ( AbstractOracleXaBank bank : banks ) {
+            pins.put( bank.BIC, pin( bank ) );
+        }
+
+        final List<Callable<RangeResult>> tasks = new ArrayList<>();
+        for ( AbstractOracleXaBank bank : banks ) {
+            for ( KeyRange range : split ) {
+                tasks.add( () -> checkRange( bank, pins.get( bank.BIC ), range ) );
+            }
+        }
+
+        final List<RangeResult> results = new ArrayList<>( tasks.size() );
+        final ForkJoinPool pool = new ForkJoinPool( this.parallelism );
+        try {
+            for ( Future<RangeResult> future : pool.invokeAll( tasks ) ) {
+                results.add( future.get() );
+            }
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new SQLException( "Reconciliation interrupted.", ex );
+        } catch ( ExecutionException ex ) {
+            if ( ex.getCause() instanceof SQLException ) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new RuntimeException( "Reconciliation failed: " + ex.getCause().getMessage(), ex.getCause() );
+        } finally {
+            pool.shutdown();
+        }
+
+        for ( AbstractOracleXaBank bank : banks ) {
+            fold( bank, pins.get( bank.BIC ) );
+        }
+
+        final Report report = new Report( results, expectedTotal, System.nanoTime() - start );
+        LOG.info( report.toString() );
+        return report;
+    }
+
+
+    Pin pin( final AbstractOracleXaBank bank ) throws SQLException {
+        try ( Connection connection = bank.openLocalConnection() ) {
+            final long scn;
+            try ( Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery( PIN ) ) {
+                resultSet.next();
+                scn = resultSet.getLong( 1 );
+            }
+            try ( PreparedStatement statement = connection.prepareStatement( WATERMARK ) ) {
+                statement.setLong( 1, scn );
+                try ( ResultSet resultSet = statement.executeQuery() ) {
+                    resultSet.next();
+                    return new Pin( scn, resultSet.getLong( 1 ), resultSet.getLong( 2 ) );
+                }
+            }
+        }
+    }
+
+
+    private RangeResult checkRange( final AbstractOracleXaBank bank, final Pin pin, final KeyRange range ) throws SQLException {
+        try ( Connection connection = bank.openLocalConnection() ) {
+            connection.setReadOnly( true );
+
+            final Digest accounts;
+            try ( PreparedStatement statement = connection.prepareStatement( String.format( ACCOUNT_DIGEST, range.predicate() ) ) ) {
+                statement.setLong( 1, pin.scn );
+                range.bind( statement, 2 );
+                accounts = digest( statement );
+            }
+            final Digest ledger;
+            try ( PreparedStatement statement = connection.prepareStatement( String.format( LEDGER_DIGEST, range.predicate() ) ) ) {
+                bindLedger( statement, 1, pin, range );
+                ledger = digest( statement );
+            }
+
+            List<Discrepancy> discrepancies = Collections.emptyList();
+            if ( !accounts.equals( ledger ) ) {
+                discrepancies = findDiscrepancies( connection, bank, pin, range );
+            }
+            return new RangeResult( bank.BIC, range, accounts, ledger, discrepancies );
+        }
+    }
+
+
+    /**
+     * Moves the bank's snapshot forward to the highest EntryNo seen by the previous run, as of the pinned SCN. Both
+     * watermarks have to be unchanged since the pin: the snapshot watermark alone does not tell whether another run has
+     * folded meanwhile, e.g., if it equals the pending one.
+     *
+     * @return whether the snapshot has been moved, false if another run has moved it since the pin
+     */
+    boolean fold( final AbstractOracleXaBank bank, final Pin pin ) throws SQLException {
+        try ( Connection connection = bank.openLocalConnection() ) {
+            connection.setAutoCommit( false );
+            try {
+                try ( PreparedStatement statement = connection.prepareStatement( FOLD_WATERMARK ) ) {
+                    statement.setLong( 1, pin.scn );
+                    statement.setLong( 2, pin.snapshotEntryNo );
+                    statement.setLong( 3, pin.pendingEntryNo );
+                    if ( statement.executeUpdate() == 0 ) {
+                        LOG.warning( "The ledger snapshot of " + bank.BIC + " has been moved by another run." );
+                        connection.rollback();
+                        return false;
+                    }
+                }
+                try ( PreparedStatement statement = connection.prepareStatement( FOLD_SNAPSHOT ) ) {
+                    statement.setLong( 1, pin.scn );
+                    statement.setLong( 2, pin.snapshotEntryNo );
+                    statement.setLong( 3, pin.pendingEntryNo );
+                    statement.executeUpdate();
+                }
+                connection.commit();
+                return true;
+            } catch ( SQLException ex ) {
+                connection.rollback();
+                throw ex;
+            }
+        }
+    }
+
+
+    private static int bindLedger( final PreparedStatement statement, int parameterIndex, final Pin pin, final KeyRange range ) throws SQLException {
+        statement.setLong( parameterIndex++, pin.scn );
+        parameterIndex = range.bind( statement, parameterIndex );
+        statement.setLong( parameterIndex++, pin.scn );
+        statement.setLong( parameterIndex++, pin.snapshotEntryNo );
+        return range.bind( statement, parameterIndex );
+    }
+
+
+    private static Digest digest( final PreparedStatement statement ) throws SQLException {
+        try ( ResultSet resultSet = statement.executeQuery() ) {
+            resultSet.next();
+            return new Digest( resultSet.getLong( 1 ), resultSet.getBigDecimal( 2 ), resultSet.getBigDecimal( 3 ) );
+        }
+    }
+
+
+    private List<Discrepancy> findDiscrepancies( final Connection connection, final AbstractOracleXaBank bank, final Pin pin, final KeyRange range ) throws SQLException {
+        final List<Discrepancy> discrepancies = new ArrayList<>();
+        try ( PreparedStatement statement = connection.prepareStatement( String.format( DISCREPANCIES, range.predicate() ) ) ) {
+            statement.setLong( 1, pin.scn );
+            int parameterIndex = range.bind( statement, 2 );
+            parameterIndex = bindLedger( statement, parameterIndex, pin, range );
+            statement.setInt( parameterIndex, this.maxDiscrepanciesPerRange );
+            try ( ResultSet resultSet = statement.executeQuery() ) {
+                while ( resultSet.next() ) {
+                    discrepancies.add( new Discrepancy( bank.BIC, resultSet.getString( 1 ), resultSet.getBigDecimal( 2 ), resultSet.getBigDecimal( 3 ) ) );
+                }
+            }
+        }
+        return discrepancies;
+    }
+
+
+    /**
+     * The SCN a bank is read at and the watermarks of its ledger snapshot at that SCN.
+     */
+    static final class Pin {
+
+        final long scn;
+        final long snapshotEntryNo;
+        final long pendingEntryNo;
+
+
+        Pin( final long scn, final long snapshotEntryNo, final long pendingEntryNo ) {
+            this.scn = scn;
+            this.snapshotEntryNo = snapshotEntryNo;
+            this.pendingEntryNo = pendingEntryNo;
+        }
+    }
+
+
+    /**
+     * Number of accounts, total and order-independent hash of a range.
+     */
+    public static final class Digest {
+
+        public final long count;
+        public final BigDecimal total;
+        public final BigDecimal hash;
+
+
+        public Digest( final long count, final BigDecimal total, final BigDecimal hash ) {
+            this.count = count;
+            this.total = total;
+            this.hash = hash;
+        }
+
+
+        @Override
+        public boolean equals( final Object o ) {
+            if ( this == o ) {
+                return true;
+            }
+            if ( !(o instanceof Digest) ) {
+                return false;
+            }
+            final Digest other = (Digest) o;
+            return count == other.count && total.compareTo( other.total ) == 0 && hash.compareTo( other.hash ) == 0;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return Objects.hash( count, total.stripTrailingZeros(), hash.stripTrailingZeros() );
+        }
+
+
+        @Override
+        public String toString() {
+            return count + " accounts, total " + total.toPlainString() + ", hash " + hash.toPlainString();
+        }
+    }
+
+
+    public static final class RangeResult {
+
+        public final String bic;
+        public final KeyRange range;
+        public final Digest accounts;
+        public final Digest ledger;
+        public final List<Discrepancy> discrepancies;
+
+
+        private RangeResult( final String bic, final KeyRange range, final Digest accounts, final Digest ledger, final List<Discrepancy> discrepancies ) {
+            this.bic = bic;
+            this.range = range;
+            this.accounts = accounts;
+            this.ledger = ledger;
+            this.discrepancies = discrepancies;
+        }
+
+
+        public boolean matches() {
+            return accounts.equals( ledger );
+        }
+    }
+
+
+    /**
+     * An account whose balance differs from its ledger. A null balance means the account is missing, a null ledger
+     * total means the account has no history.
+     */
+    public static final class Discrepancy {
+
+        public final String bic;
+        public final String iban;
+        public final BigDecimal balance;
+        public final BigDecimal ledger;
+
+
+        private Discrepancy( final String bic, final String iban, final BigDecimal balance, final BigDecimal ledger ) {
+            this.bic = bic;
+            this.iban = iban;
+            this.balance = balance;
+            this.ledger = ledger;
+        }
+
+
+        @Override
+        public String toString() {
+            return bic + "/" + iban + ": balance " + (balance == null ? "missing" : balance.toPlainString()) + ", ledger " + (ledger == null ? "missing" : ledger.toPlainString());
+        }
+    }
+
+
+    public static final class Report {
+
+        public final List<RangeResult> ranges;
+        public final BigDecimal total;
+        public final BigDecimal expectedTotal;
+        private final long elapsedNanos;
+
+
+        private Report( final List<RangeResult> ranges, final BigDecimal expectedTotal, final long elapsedNanos ) {
+            this.ranges = Collections.unmodifiableList( ranges );
+            this.expectedTotal = expectedTotal;
+            this.elapsedNanos = elapsedNanos;
+
+            BigDecimal total = BigDecimal.ZERO;
+            for ( RangeResult range : ranges ) {
+                total = total.add( range.accounts.total );
+            }
+            this.total = total;
+        }
+
+
+        /** @return the sum of all balances of the given bank */
+        public BigDecimal getTotal( final String bic ) {
+            BigDecimal total = BigDecimal.ZERO;
+            for ( RangeResult range : ranges ) {
+                if ( range.bic.equals( bic ) ) {
+                    total = total.add( range.accounts.total );
+                }
+            }
+            return total;
+        }
+
+
+        /**
+         * @return whether the sum of all balances equals the expected total (true if no total was expected); only exact
+         * if no transfer between the banks committed during the run
+         */
+        public boolean isConserved() {
+            return expectedTotal == null || expectedTotal.compareTo( total ) == 0;
+        }
+
+
+        /** @return whether every bank's balances equal its ledger */
+        public boolean isConsistent() {
+            for ( RangeResult range : ranges ) {
+                if ( !range.matches() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        public List<RangeResult> getMismatchingRanges() {
+            final List<RangeResult> mismatching = new ArrayList<>();
+            for ( RangeResult range : ranges ) {
+                if ( !range.matches() ) {
+                    mismatching.add( range );
+                }
+            }
+            return mismatching;
+        }
+
+
+        public List<Discrepancy> getDiscrepancies() {
+            final List<Discrepancy> discrepancies = new ArrayList<>();
+            for ( RangeResult range : ranges ) {
+                discrepancies.addAll( range.discrepancies );
+            }
+            return discrepancies;
+        }
+
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append( String.format( "Reconciled %d ranges in %d ms: total %s", ranges.size(), getElapsedMillis(), total.toPlainString() ) );
+            if ( expectedTotal != null ) {
+                sb.append( ", expected " ).append( expectedTotal.toPlainString() ).append( isConserved() ? " (conserved)" : " (NOT conserved)" );
+            }
+            for ( RangeResult range : getMismatchingRanges() ) {
+                sb.append( String.format( "%n  %s %s: accounts [%s], ledger [%s]", range.bic, range.range, range.accounts, range.ledger ) );
+                for ( Discrepancy discrepancy : range.discrepancies ) {
+                    sb.append( String.format( "%n    %s", discrepancy ) );
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package ch.unibas.dmi.dbis.fds._2pc;
+
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.function.Consumer;
+
+
+/**
+ * The append-only transfer_history table: one row per booking on an account. Rows are written on the connection (and
+ * therefore in the transaction) of the balance change they describe and are never updated afterwards.
+ * <p>
+ * The entry numbers come from a cached sequence and the table is range partitioned by them, so inserts always go to the
+ * newest partition. Statements are read through the global (non-partitioned) (IBAN, BookedAt, EntryNo) index, so every
+ * page is one ordered range scan which stops after pageSize entries, independent of the number of partitions.
+ */
+public final class TransferHistory {
+
+    private static final String INSERT = "INSERT INTO transfer_history (EntryNo, IBAN, BookedAt, Amount, CounterBIC, CounterIBAN, Reference) " +
+            "VALUES (transfer_history_seq.NEXTVAL, ?, SYSTIMESTAMP, ?, ?, ?, ?)";
+
+
+    private TransferHistory() {
+    }
+
+
+    /**
+     * Opens a journal writing to the history table on the given connection. Entries are sent to the database in
+     * batches of the given size; the last batch is sent on {@link Journal#flush()} or {@link Journal#close()}.
+     */
+    public static Journal openJournal( final Connection connection, final int batchSize ) throws SQLException {
+        return new Journal( connection.prepareStatement( INSERT ), batchSize );
+    }
+
+
+    /**
+     * Writes a single entry, e.g., for one branch of a transfer.
+     */
+    public static void record( final Connection connection, final String iban, final BigDecimal amount, final String counterBic, final String counterIban, final String reference ) throws SQLException {
+        try ( Journal journal = openJournal( connection, 1 ) ) {
+            journal.add( iban, amount, counterBic, counterIban, reference );
+        }
+    }
+
+
+    /**
+     * Streams the entries of an account booked in [from, to) to the given sink, oldest first.
+     * <p>
+     * The history is read in pages of pageSize entries. Every page is a separate query continuing after the
+     * (BookedAt, EntryNo) of the previous one, so neither the client nor an open cursor has to hold more than one page,
+     * regardless of how many years are exported. Within a page, the driver fetches fetchSize rows per round trip.
+     *
+     * @param from first booking time to export, or null for the beginning of the history
+     * @param to end (exclusive) of the export, or null for no limit
+     * @return the number of exported entries
+     */
+    public static long exportStatement( final Connection connection, final String iban, final Timestamp from, final Timestamp to, final int pageSize, final int fetchSize, final Consumer<Entry> sink ) throws SQLException {
+        if ( pageSize < 1 || fetchSize < 1 ) {
+            throw new IllegalArgumentException( "Page and fetch size must be positive." );
+        }
+
+        final String query = "SELECT EntryNo, IBAN, BookedAt, Amount, CounterBIC, CounterIBAN, Reference FROM (" +
+                "SELECT EntryNo, IBAN, BookedAt, Amount, CounterBIC, CounterIBAN, Reference FROM transfer_history " +
+                "WHERE IBAN = ? AND (BookedAt > ? OR (BookedAt = ? AND EntryNo > ?))" + (to != null ? " AND BookedAt < ?" : "") + " " +
+                "ORDER BY BookedAt, EntryNo" +
+                ") WHERE ROWNUM <= ?";
+
+        Timestamp lastBookedAt = from != null ? from : new Timestamp( 0 );
+        long lastEntryNo = -1; // from is inclusive
+        long exported = 0;
+
+        try ( PreparedStatement statement = connection.prepareStatement( query ) ) {
+            statement.setFetchSize( Math.min( fetchSize, pageSize ) );
+            while ( true ) {
+                int parameterIndex = 1;
+                statement.setString( parameterIndex++, iban );
+                statement.setTimestamp( parameterIndex++, lastBookedAt );
+                statement.setTimestamp( parameterIndex++, lastBookedAt );
+                statement.setLong( parameterIndex++, lastEntryNo );
+                if ( to != null ) {
+                    statement.setTimestamp( parameterIndex++, to );
+                }
+                statement.setInt( parameterIndex, pageSize );
+
+                int rows = 0;
+                try ( ResultSet resultSet = statement.executeQuery() ) {
+                    while ( resultSet.next() ) {
+                        final Entry entry = new Entry( resultSet.getLong( 1 ), resultSet.getString( 2 ), resultSet.getTimestamp( 3 ), resultSet.getBigDecimal( 4 ), resultSet.getString( 5 ), resultSet.getString( 6 ), resultSet.getString( 7 ) );
+                        sink.accept( entry );
+                        lastBookedAt = entry.bookedAt;
+                        lastEntryNo = entry.entryNo;
+                        ++rows;
+                    }
+                }
+
+                exported += rows;
+                if ( rows < pageSize ) {
+                    return exported;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Batched writer for history entries.
+     */
+    public static final class Journal implements AutoCloseable {
+
+        private final PreparedStatement statement;
+        private final int batchSize;
+        private int pending = 0;
+
+
+        private Journal( final PreparedStatement statement, final int batchSize ) {
+            if ( batchSize < 1 ) {
+                throw new IllegalArgumentException( "Batch size must be positive." );
+            }
+            this.statement = statement;
+            this.batchSize = batchSize;
+        }
+
+
+        public void add( final String iban, final BigDecimal amount, final String counterBic, final String counterIban, final String reference ) throws SQLException {
+            statement.setString( 1, iban );
+            statement.setBigDecimal( 2, amount );
+            statement.setString( 3, counterBic );
+            statement.setString( 4, counterIban );
+            statement.setString( 5, reference );
+            statement.addBatch();
+            if ( ++pending >= batchSize ) {
+                flush();
+            }
+        }
+
+
+        public void flush() throws SQLException {
+            if ( pending > 0 ) {
+                statement.executeBatch();
+                pending = 0;
+            }
+        }
+
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                flush();
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+
+    /**
+     * One booking on an account; negative amounts are debits.
+     */
+    public static final class Entry {
+
+        public final long entryNo;
+        public final String iban;
+        public final Timestamp bookedAt;
+        public final BigDecimal amount;
+        public final String counterBic;
+        public final String counterIban;
+        public final String reference;
+
+
+        public Entry( final long entryNo, final String iban, final Timestamp bookedAt, final BigDecimal amount, final String counterBic, final String counterIban, final String reference ) {
+            this.entryNo = entryNo;
+            this.iban = iban;
+            this.bookedAt = bookedAt;
+            this.amount = amount;
+            this.counterBic = counterBic;
+            this.counterIban = counterIban;
+            this.reference = reference;
+        }
+
+
+        @Override
+        public String toString() {
+            return entryNo + ";" + iban + ";" + bookedAt + ";" + amount.toPlainString() + ";" + (counterBic == null ? "" : counterBic) + ";" + (counterIban == null ? "" : counterIban) + ";" + (reference == null ? "" : reference);
+        }
+    }
+}
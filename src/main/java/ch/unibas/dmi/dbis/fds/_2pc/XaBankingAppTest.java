@@ -8,10 +8,14 @@ import org.junit.platform.launcher.core.LauncherFactory;
 import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
 import org.junit.platform.launcher.listeners.TestExecutionSummary;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -105,12 +109,24 @@ public class XaBankingAppTest {
                 statement.executeUpdate( "UPDATE account SET balance = 5000 WHERE iban = 'CH5367B3'" );
                 statement.executeUpdate( "UPDATE account SET balance = 1700 WHERE iban = 'CH5367B4'" );
                 statement.executeUpdate( "UPDATE account SET balance = 2345 WHERE iban = 'CH5367B5'" );
+                journalReset( statement );
                 c.commit();
             }
         }
     }
 
 
+    /**
+     * Books the difference between the reset balances and their ledger, so that the history stays the ledger of the accounts.
+     */
+    private static void journalReset( final Statement statement ) throws SQLException {
+        statement.executeUpdate( "INSERT INTO transfer_history (EntryNo, IBAN, BookedAt, Amount, Reference) " +
+                "SELECT transfer_history_seq.NEXTVAL, a.IBAN, SYSTIMESTAMP, a.Balance - NVL(l.Total, 0), 'Reset' " +
+                "FROM account a LEFT OUTER JOIN (SELECT IBAN, SUM(Amount) AS Total FROM transfer_history GROUP BY IBAN) l ON a.IBAN = l.IBAN " +
+                "WHERE DECODE(a.Balance, l.Total, 0, 1) = 1" );
+    }
+
+
     @AfterEach
     public void afterTest() {
         System.out.printf( "-----------------------------------------\n" );
@@ -340,4 +356,262 @@ public class XaBankingAppTest {
         assertEquals(initialBalanceFrom, FROM_BANK.getBalance(ibanFrom), Float.MIN_VALUE);
         assertEquals(initialBalanceTo, TO_BANK.getBalance(ibanTo), Float.MIN_VALUE);
     }
+
+    @Test
+    public void interestAccrual() throws SQLException {
+        final AbstractOracleXaBank BANK = Bank.BANK_X.bank;
+        final String runId = "interestAccrual-" + System.nanoTime();
+
+        System.out.println( "Interest accrual on " + Bank.BANK_X.name() );
+
+        final InterestAccrualJob job = new InterestAccrualJob( BANK, 2, 3, 2, InterestAccrualJob.days( 73 ) ); // a fifth of a year
+        final InterestAccrualJob.Result result = job.run( runId );
+        System.out.println( result );
+
+        assertEquals( 8016f, BANK.getBalance( "CH5367B1" ), Float.MIN_VALUE );
+        assertEquals( 15000f, BANK.getBalance( "CH5367B2" ), Float.MIN_VALUE ); // capped, ck_full_account
+        assertEquals( 5010f, BANK.getBalance( "CH5367B3" ), Float.MIN_VALUE );
+        assertEquals( 1706.8f, BANK.getBalance( "CH5367B4" ), Float.MIN_VALUE );
+        assertEquals( 1, result.getCappedAccounts() );
+        assertEquals( 4, result.getAccounts() );
+
+        // restarting a completed run must not post the interest twice
+        final InterestAccrualJob.Result rerun = job.run( runId );
+        assertEquals( 0, rerun.getAccounts() );
+        assertEquals( 8016f, BANK.getBalance( "CH5367B1" ), Float.MIN_VALUE );
+    }
+
+    @Test
+    public void transferHistory() throws SQLException {
+        final String ibanFrom = "CH5367B3", bicFrom = Bank.BANK_X.name();
+        final String ibanTo = "CH5367B4", bicTo = Bank.BANK_Y.name();
+        final float transferValue = 100.5f;
+
+        final AbstractOracleXaBank FROM_BANK = Bank.BANK_X.bank;
+        final AbstractOracleXaBank TO_BANK = Bank.BANK_Y.bank;
+
+        printTestDescription( "Transfer history", ibanFrom, bicFrom, ibanTo, bicTo, transferValue );
+
+        FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, transferValue );
+
+        final List<TransferHistory.Entry> debits = new ArrayList<>();
+        FROM_BANK.exportStatement( ibanFrom, null, null, 2, debits::add );
+        final List<TransferHistory.Entry> credits = new ArrayList<>();
+        TO_BANK.exportStatement( ibanTo, null, null, 2, credits::add );
+
+        debits.forEach( System.out::println );
+        credits.forEach( System.out::println );
+
+        assertFalse( debits.isEmpty() );
+        assertFalse( credits.isEmpty() );
+        assertEquals( 0, new BigDecimal( "-100.5" ).compareTo( debits.get( debits.size() - 1 ).amount ) );
+        assertEquals( ibanTo, debits.get( debits.size() - 1 ).counterIban );
+        assertEquals( 0, new BigDecimal( "100.5" ).compareTo( credits.get( credits.size() - 1 ).amount ) );
+        assertEquals( FROM_BANK.BIC, credits.get( credits.size() - 1 ).counterBic );
+
+        // an amount which is not exact in binary must be booked exactly as it is applied to the balances
+        FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, 0.1f );
+        assertTrue( new Reconciliation( Arrays.asList( FROM_BANK, TO_BANK ), 1, 2, 10 ).run( null ).isConsistent() );
+    }
+
+    @Test
+    public void transferIdempotent() throws SQLException {
+        final String ibanFrom = "CH5367B1", bicFrom = Bank.BANK_X.name();
+        final String ibanTo = "CH5367B3", bicTo = Bank.BANK_Y.name();
+        final float transferValue = 100.5f;
+        final String idempotencyKey = "transferIdempotent-" + System.nanoTime();
+
+        final AbstractOracleXaBank FROM_BANK = Bank.BANK_X.bank;
+        final AbstractOracleXaBank TO_BANK = Bank.BANK_Y.bank;
+
+        final float expectedBalanceFrom = FROM_BANK.getBalance( ibanFrom ) - transferValue;
+        final float expectedBalanceTo = TO_BANK.getBalance( ibanTo ) + transferValue;
+
+        printTestDescription( "Transfer retried with the same idempotency key", ibanFrom, bicFrom, ibanTo, bicTo, transferValue );
+
+        FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, transferValue, idempotencyKey );
+        FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, transferValue, idempotencyKey ); // served by the cache
+
+        ((OracleXaBank) FROM_BANK).getIdempotencyCache().clear();
+        FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, transferValue, idempotencyKey ); // rejected by the recorded key
+
+        // the same key for a different transfer, known from the cache and from the database
+        final String reused = "Transfer failed: Idempotency key " + idempotencyKey + " has already been used for a different transfer.";
+        RuntimeException exception = assertThrows( RuntimeException.class, () ->
+                FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, 2 * transferValue, idempotencyKey )
+        );
+        assertEquals( reused, exception.getMessage() );
+        ((OracleXaBank) FROM_BANK).getIdempotencyCache().clear();
+        exception = assertThrows( RuntimeException.class, () ->
+                FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, 2 * transferValue, idempotencyKey )
+        );
+        assertEquals( reused, exception.getMessage() );
+
+        assertEquals( expectedBalanceFrom, FROM_BANK.getBalance( ibanFrom ), Float.MIN_VALUE );
+        assertEquals( expectedBalanceTo, TO_BANK.getBalance( ibanTo ), Float.MIN_VALUE );
+    }
+
+    @Test
+    public void transferCrashBetweenPrepareAndCommit() throws SQLException {
+        final AbstractOracleXaBank FROM_BANK = Bank.BANK_X.bank;
+        final AbstractOracleXaBank TO_BANK = Bank.BANK_Y.bank;
+        final List<String> ibans = Arrays.asList( "CH5367B3", "CH5367B4" );
+
+        final float initialBalanceFrom3 = FROM_BANK.getBalance( "CH5367B3" );
+        final float initialBalanceFrom4 = FROM_BANK.getBalance( "CH5367B4" );
+
+        System.out.println( "Transfer with a coordinator crash between prepare and commit" );
+
+        final FaultInjector injector = new FaultInjector()
+                .configure( FaultInjector.Phase.PREPARE, FaultInjector.Fault.slow( FaultInjector.LatencyDistribution.uniform( 5, 20 ) ) )
+                .configure( FaultInjector.Phase.COMMIT, FaultInjector.Fault.crashing( 1 ) );
+        final FaultScenarioRunner runner = new FaultScenarioRunner( FROM_BANK, TO_BANK, ibans, 10f, 100 );
+        final FaultScenarioRunner.Report report = runner.run( "crash before commit", injector, null, 3 );
+        System.out.println( report );
+
+        assertEquals( 3, report.getCrashed() );
+        assertEquals( 6, report.getRecoveredBranches() );
+        assertTrue( report.getMeanStuckBranchMillis() >= 100 );
+
+        // presumed abort: the recovery rolled back both branches of every crashed transfer
+        assertEquals( initialBalanceFrom3, FROM_BANK.getBalance( "CH5367B3" ), Float.MIN_VALUE );
+        assertEquals( initialBalanceFrom4, FROM_BANK.getBalance( "CH5367B4" ), Float.MIN_VALUE );
+    }
+
+    @Test
+    public void transferCrashBetweenCommits() throws SQLException {
+        final AbstractOracleXaBank FROM_BANK = Bank.BANK_X.bank;
+        final AbstractOracleXaBank TO_BANK = Bank.BANK_Y.bank;
+        final List<String> ibans = Arrays.asList( "CH5367B3", "CH5367B4" );
+        final Reconciliation reconciliation = new Reconciliation( Arrays.asList( FROM_BANK, TO_BANK ), 1, 2, 10 );
+
+        final BigDecimal initialTotal = reconciliation.run( null ).total;
+        final float initialBalanceFrom = FROM_BANK.getBalance( "CH5367B3" ) + FROM_BANK.getBalance( "CH5367B4" );
+
+        System.out.println( "Transfer with a coordinator crash between the commits of the debit and the credit" );
+
+        final FaultInjector injector = new FaultInjector()
+                .configure( FaultInjector.Phase.COMMIT, FaultInjector.Fault.crashing( 1 ) );
+        final FaultScenarioRunner runner = new FaultScenarioRunner( FROM_BANK, TO_BANK, ibans, 10f, 100 );
+        final FaultScenarioRunner.Report report = runner.run( "crash before second commit", null, injector, 3 );
+        System.out.println( report );
+
+        assertEquals( 3, report.getCrashed() );
+        assertEquals( 3, report.getRecoveredBranches() ); // the credits, the debits had been committed
+
+        // the recovery committed the credits of the committed debits: no money lost
+        assertEquals( initialBalanceFrom - 30f, FROM_BANK.getBalance( "CH5367B3" ) + FROM_BANK.getBalance( "CH5367B4" ), Float.MIN_VALUE );
+        final Reconciliation.Report after = reconciliation.run( initialTotal );
+        assertTrue( after.isConserved() );
+        assertTrue( after.isConsistent() );
+
+        // the decisions are not kept once the credits have been committed
+        try ( Connection c = DriverManager.getConnection( FROM_BANK.jdbcConnectionString, DBMS_USERNAME, DBMS_PASSWORD );
+              Statement statement = c.createStatement();
+              ResultSet resultSet = statement.executeQuery( "SELECT COUNT(*) FROM transfer_commit_log" ) ) {
+            resultSet.next();
+            assertEquals( 0, resultSet.getInt( 1 ) );
+        }
+    }
+
+    @Test
+    public void reconciliation() throws SQLException {
+        final AbstractOracleXaBank BANK_X = Bank.BANK_X.bank;
+        final AbstractOracleXaBank BANK_Y = Bank.BANK_Y.bank;
+        final Reconciliation reconciliation = new Reconciliation( Arrays.asList( BANK_X, BANK_Y ), 3, 4, 100 );
+
+        System.out.println( "Reconciliation of " + Bank.BANK_X.name() + " and " + Bank.BANK_Y.name() );
+
+        final BigDecimal expectedTotal = reconciliation.run( null ).total;
+
+        BANK_X.transfer( BANK_Y, "CH5367B1", "CH5367B3", 100.5f );
+        BANK_Y.transfer( BANK_X, "CH5367B4", "CH5367B5", 42f );
+
+        final Reconciliation.Report afterTransfers = reconciliation.run( expectedTotal );
+        System.out.println( afterTransfers );
+        assertTrue( afterTransfers.isConserved() );
+        assertTrue( afterTransfers.isConsistent() );
+
+        // money appearing without a booking
+        try ( Connection c = DriverManager.getConnection( BANK_X.jdbcConnectionString, DBMS_USERNAME, DBMS_PASSWORD ) ) {
+            final Statement statement = c.createStatement();
+            statement.executeUpdate( "UPDATE account SET balance = balance + 1 WHERE iban = 'CH5367B5'" );
+        }
+
+        final Reconciliation.Report afterTampering = reconciliation.run( expectedTotal );
+        System.out.println( afterTampering );
+        assertFalse( afterTampering.isConserved() );
+        assertEquals( 1, afterTampering.getMismatchingRanges().size() );
+        assertEquals( 1, afterTampering.getDiscrepancies().size() );
+        assertEquals( "CH5367B5", afterTampering.getDiscrepancies().get( 0 ).iban );
+        assertEquals( BANK_X.BIC, afterTampering.getDiscrepancies().get( 0 ).bic );
+    }
+
+    @Test
+    public void reconciliationOverlappingFolds() throws SQLException {
+        final AbstractOracleXaBank BANK_X = Bank.BANK_X.bank;
+        final AbstractOracleXaBank BANK_Y = Bank.BANK_Y.bank;
+        final Reconciliation reconciliation = new Reconciliation( Arrays.asList( BANK_X, BANK_Y ), 1, 2, 10 );
+
+        System.out.println( "Reconciliation with two folds from the same pin" );
+
+        // two folds without new entries in between: both watermarks are the same
+        reconciliation.fold( BANK_X, reconciliation.pin( BANK_X ) );
+        reconciliation.fold( BANK_X, reconciliation.pin( BANK_X ) );
+
+        // new entries up to the pin, both runs would move the pending watermark over them
+        BANK_X.transfer( BANK_Y, "CH5367B1", "CH5367B3", 100.5f );
+        final Reconciliation.Pin pin = reconciliation.pin( BANK_X );
+        assertTrue( reconciliation.fold( BANK_X, pin ) );
+        assertFalse( reconciliation.fold( BANK_X, pin ) ); // overlapping run
+
+        assertTrue( reconciliation.run( null ).isConsistent() );
+        assertTrue( reconciliation.run( null ).isConsistent() );
+    }
+
+    @Test
+    public void transferPreValidation() throws SQLException {
+        final String ibanFrom = "CH5367B1", bicFrom = Bank.BANK_X.name();
+        final String ibanTo = "CH5367B2", bicTo = Bank.BANK_Y.name();
+        final float transferValue = 100.5f;
+
+        final AbstractOracleXaBank FROM_BANK = Bank.BANK_X.bank;
+        final AbstractOracleXaBank TO_BANK = Bank.BANK_Y.bank;
+
+        float initialBalanceFrom = FROM_BANK.getBalance( ibanFrom );
+        float initialBalanceTo = TO_BANK.getBalance( ibanTo );
+
+        printTestDescription( "Transfer to an account with a max balance, rejected by pre-validation", ibanFrom, bicFrom, ibanTo, bicTo, transferValue );
+
+        FROM_BANK.setPreValidation( true );
+        TO_BANK.setPreValidation( true );
+        try {
+            RuntimeException exception = assertThrows( RuntimeException.class, () ->
+                    FROM_BANK.transfer( TO_BANK, ibanFrom, ibanTo, transferValue )
+            );
+            assertEquals( "Transfer failed: Account capacity exceeded: " + ibanTo, exception.getMessage() );
+            assertEquals( 1, TO_BANK.getConstraintIndex().getRejectedCapacity() );
+
+            exception = assertThrows( RuntimeException.class, () ->
+                    FROM_BANK.transfer( TO_BANK, "INVALID_IBAN", "CH5367B1", transferValue )
+            );
+            assertEquals( "Transfer failed: Insufficient funds or invalid IBAN: INVALID_IBAN", exception.getMessage() );
+            assertEquals( 1, FROM_BANK.getConstraintIndex().getRejectedUnknownIban() );
+
+            // a stale index is only a hint: the balance is re-read before the transfer is rejected
+            TO_BANK.getConstraintIndex().apply( "CH5367B1", new BigDecimal( 15000 ) );
+            FROM_BANK.transfer( TO_BANK, ibanFrom, "CH5367B1", transferValue );
+            assertEquals( 1, FROM_BANK.getConstraintIndex().getAccepted() );
+            assertEquals( 1, TO_BANK.getConstraintIndex().getRejectedCapacity() );
+
+            System.out.println( FROM_BANK.BIC + ": " + FROM_BANK.getConstraintIndex() );
+            System.out.println( TO_BANK.BIC + ": " + TO_BANK.getConstraintIndex() );
+        } finally {
+            FROM_BANK.setPreValidation( false );
+            TO_BANK.setPreValidation( false );
+        }
+
+        assertEquals( initialBalanceFrom - transferValue, FROM_BANK.getBalance( ibanFrom ), Float.MIN_VALUE );
+        assertEquals( initialBalanceTo, TO_BANK.getBalance( ibanTo ), Float.MIN_VALUE );
+    }
 }
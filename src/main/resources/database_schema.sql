@@ -4,6 +4,13 @@
 -- Usually you will not need to execute this file manually. All is done in AbstractOracleXaBank.java.
 --
 
+DROP TABLE ledger_watermark;
+DROP TABLE ledger_snapshot;
+DROP TABLE transfer_commit_log;
+DROP TABLE transfer_idempotency;
+DROP TABLE transfer_history;
+DROP SEQUENCE transfer_history_seq;
+DROP TABLE interest_checkpoint;
 DROP TABLE account;
 DROP TABLE customer;
 
@@ -46,3 +53,75 @@ INSERT INTO account VALUES ('CH5367B2', 2, 15000, 0.02);
 INSERT INTO account VALUES ('CH5367B3', 3, 5000, 0.01);
 INSERT INTO account VALUES ('CH5367B4', 4, 1700, 0.02);
 INSERT INTO account VALUES ('CH5367B5', 5, 2345, 0.0075);
+
+
+-- Progress of the nightly interest accrual (InterestAccrualJob.java); one row per IBAN range of a run.
+CREATE TABLE interest_checkpoint (
+  RunId           VARCHAR2(50),
+  RangeNo         INTEGER,
+  LowIban         VARCHAR2(50),
+  HighIban        VARCHAR2(50),
+  LastIban        VARCHAR2(50),
+  Done            NUMBER(1) DEFAULT 0,
+  AccrualFraction NUMBER,
+  CONSTRAINT pk_interest_checkpoint PRIMARY KEY (RunId, RangeNo)
+);
+
+-- Append-only booking journal (TransferHistory.java). Rows are never updated (PCTFREE 0); the entry numbers come from
+-- a cached sequence and the table is partitioned by them, so inserts always go to the newest partition.
+CREATE SEQUENCE transfer_history_seq CACHE 1000 NOORDER;
+
+CREATE TABLE transfer_history (
+  EntryNo     NUMBER,
+  IBAN        VARCHAR2(50),
+  BookedAt    TIMESTAMP,
+  Amount      NUMBER,
+  CounterBIC  VARCHAR2(50),
+  CounterIBAN VARCHAR2(50),
+  Reference   VARCHAR2(100),
+  CONSTRAINT pk_transfer_history PRIMARY KEY (EntryNo)
+)
+PCTFREE 0
+PARTITION BY RANGE (EntryNo) INTERVAL (10000000) (PARTITION p_history_0 VALUES LESS THAN (10000000));
+
+-- Global (not partitioned by EntryNo), so a statement page is a single ordered range scan over the account's entries.
+CREATE INDEX ix_transfer_history_statement ON transfer_history (IBAN, BookedAt, EntryNo);
+
+-- The history is the ledger of the accounts: their balances always equal the sum of their entries (Reconciliation.java).
+INSERT INTO transfer_history (EntryNo, IBAN, BookedAt, Amount, Reference)
+SELECT transfer_history_seq.NEXTVAL, IBAN, SYSTIMESTAMP, Balance, 'Opening balance' FROM account;
+
+-- Idempotency keys of transfers, inserted in the debit branch (OracleXaBank.java).
+CREATE TABLE transfer_idempotency (
+  IdempotencyKey VARCHAR2(100),
+  IBAN           VARCHAR2(50),
+  Amount         NUMBER,
+  CounterBIC     VARCHAR2(50),
+  CounterIBAN    VARCHAR2(50),
+  CreatedAt      TIMESTAMP,
+  CONSTRAINT pk_transfer_idempotency PRIMARY KEY (IdempotencyKey)
+);
+
+-- Commit decisions of transfers coordinated by this bank, inserted in the debit branch (OracleXaBank.java).
+-- A row is visible once the debit branch has been committed, so the recovery commits the credit branch.
+-- It is deleted once the credit branch has been committed as well.
+CREATE TABLE transfer_commit_log (
+  GlobalTransactionId RAW(64),
+  CommittedAt         TIMESTAMP,
+  CONSTRAINT pk_transfer_commit_log PRIMARY KEY (GlobalTransactionId)
+);
+
+-- Closing ledger totals up to an EntryNo, kept by the reconciliation (Reconciliation.java).
+-- Entries up to SnapshotEntryNo are in the snapshot, those up to PendingEntryNo are folded in by the next run.
+CREATE TABLE ledger_snapshot (
+  IBAN  VARCHAR2(50),
+  Total NUMBER,
+  CONSTRAINT pk_ledger_snapshot PRIMARY KEY (IBAN)
+);
+
+CREATE TABLE ledger_watermark (
+  SnapshotEntryNo NUMBER,
+  PendingEntryNo  NUMBER
+);
+
+INSERT INTO ledger_watermark (SnapshotEntryNo, PendingEntryNo) VALUES (0, 0);